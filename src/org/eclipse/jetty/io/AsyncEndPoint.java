@@ -43,6 +43,15 @@ public interface AsyncEndPoint extends ConnectedEndPoint
      */
     public void scheduleWrite();
 
+    /* ------------------------------------------------------------ */
+    /** Schedule a deferred flush.
+     * Output added by threads other than the one handling the connection is
+     * gathered by the selector, which dispatches each endpoint with pending
+     * output once per select loop iteration, rather than each sender
+     * flushing and waking the selector itself.
+     */
+    public void scheduleFlush();
+
     /* ------------------------------------------------------------ */
     /** Callback when idle.
      * <p>An endpoint is idle if there has been no IO activity for 
@@ -25,6 +25,7 @@ import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
 import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ScatteringByteChannel;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SocketChannel;
 
@@ -45,6 +46,7 @@ public class ChannelEndPoint implements EndPoint
 
     protected final ByteChannel _channel;
     protected final ByteBuffer[] _gather2=new ByteBuffer[2];
+    private final ByteBuffer[] _scatter2=new ByteBuffer[2];
     protected final Socket _socket;
     protected final InetSocketAddress _local;
     protected final InetSocketAddress _remote;
@@ -372,6 +374,79 @@ public class ChannelEndPoint implements EndPoint
         return length;
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * Read directly into a destination ByteBuffer, up to its limit, with a scattering read
+     * of any further bytes into the space of a buffer.  This allows a large payload to be
+     * read into its final destination without a copy, while the bytes following it are
+     * read into the normal buffer.
+     * @param dst The destination, which is filled first
+     * @param buffer The buffer to fill with any bytes beyond the limit of dst, or null
+     * @return The number of bytes read into dst and buffer, or -1 for EOF
+     */
+    public int fill(ByteBuffer dst, Buffer buffer) throws IOException
+    {
+        if (_ishut)
+            return -1;
+        Buffer buf = buffer==null?null:buffer.buffer();
+        int len=0;
+        try
+        {
+            if (buf instanceof NIOBuffer && _channel instanceof ScatteringByteChannel)
+            {
+                final ByteBuffer bbuf=((NIOBuffer)buf).getByteBuffer();
+
+                //noinspection SynchronizationOnLocalVariableOrMethodParameter
+                synchronized(bbuf)
+                {
+                    try
+                    {
+                        bbuf.position(buffer.putIndex());
+                        _scatter2[0]=dst;
+                        _scatter2[1]=bbuf;
+                        len=(int)((ScatteringByteChannel)_channel).read(_scatter2);
+                    }
+                    finally
+                    {
+                        _scatter2[0]=null;
+                        _scatter2[1]=null;
+                        buffer.setPutIndex(bbuf.position());
+                        bbuf.position(0);
+                    }
+                }
+            }
+            else
+                len=_channel.read(dst);
+
+            if (len<0 && isOpen())
+            {
+                if (!isInputShutdown())
+                    shutdownInput();
+                if (isOutputShutdown())
+                    _channel.close();
+            }
+        }
+        catch (IOException x)
+        {
+            LOG.debug("Exception while filling", x);
+            try
+            {
+                if (_channel.isOpen())
+                    _channel.close();
+            }
+            catch (Exception xx)
+            {
+                LOG.ignore(xx);
+            }
+
+            if (len>0)
+                throw x;
+            len=-1;
+        }
+
+        return len;
+    }
+
     /* ------------------------------------------------------------ */
     /**
      * @return Returns the channel.
@@ -20,11 +20,13 @@ package org.eclipse.jetty.io.nio;
 
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.eclipse.jetty.io.AsyncEndPoint;
 import org.eclipse.jetty.io.Buffer;
@@ -75,6 +77,9 @@ public class SelectChannelEndPoint extends ChannelEndPoint implements AsyncEndPo
     /** true if the last write operation succeed and wrote all offered bytes */
     private volatile boolean _writable = true;
 
+    /** true if this endpoint is in the select set's pending flushes */
+    private final AtomicBoolean _flushScheduled = new AtomicBoolean();
+
 
     /** True if a thread has is blocked in {@link #blockReadable(long)} */
     private boolean _readBlocked;
@@ -371,6 +376,16 @@ public class SelectChannelEndPoint extends ChannelEndPoint implements AsyncEndPo
         return fill;
     }
 
+    /* ------------------------------------------------------------ */
+    @Override
+    public int fill(ByteBuffer dst, Buffer buffer) throws IOException
+    {
+        int fill=super.fill(dst,buffer);
+        if (fill>0)
+            notIdle();
+        return fill;
+    }
+
     /* ------------------------------------------------------------ */
     @Override
     public int flush(Buffer header, Buffer buffer, Buffer trailer) throws IOException
@@ -556,6 +571,27 @@ public class SelectChannelEndPoint extends ChannelEndPoint implements AsyncEndPo
         updateKey();
     }
 
+    /* ------------------------------------------------------------ */
+    public void scheduleFlush()
+    {
+        if (_flushScheduled.compareAndSet(false,true))
+            _selectSet.addFlush(this);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Called by the select loop's flush pass to handle output added by
+     * {@link #scheduleFlush()}.  The connection is dispatched, or redispatched
+     * if it is already being handled, so it flushes everything gathered
+     * since the flush was scheduled.
+     */
+    void doFlush()
+    {
+        _flushScheduled.set(false);
+        if (isOpen())
+            asyncDispatch();
+    }
+
     /* ------------------------------------------------------------ */
     public boolean isWritable()
     {
@@ -18,7 +18,9 @@
 
 package org.eclipse.jetty.io.nio;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.Channel;
 import java.nio.channels.ClosedSelectorException;
@@ -35,11 +37,13 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.eclipse.jetty.io.AsyncEndPoint;
 import org.eclipse.jetty.io.ConnectedEndPoint;
 import org.eclipse.jetty.io.Connection;
 import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.util.IO;
 import org.eclipse.jetty.util.TypeUtil;
 import org.eclipse.jetty.util.component.AbstractLifeCycle;
 import org.eclipse.jetty.util.component.AggregateLifeCycle;
@@ -73,6 +77,7 @@ public abstract class SelectorManager extends AbstractLifeCycle implements Dumpa
     private volatile int _set=0;
     private boolean _deferringInterestedOps0=true;
     private int _selectorPriorityDelta=0;
+    private volatile long _connectAttemptDelay=250;
 
     /* ------------------------------------------------------------ */
     /**
@@ -171,6 +176,104 @@ public abstract class SelectorManager extends AbstractLifeCycle implements Dumpa
         }
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the delay in ms before the next address is tried while a connection attempt is in progress
+     * @see #connect(InetSocketAddress[], Object)
+     */
+    public long getConnectAttemptDelay()
+    {
+        return _connectAttemptDelay;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param connectAttemptDelay the delay in ms before the next address is tried while a connection
+     * attempt is in progress.  RFC 8305 recommends 250ms.
+     * @see #connect(InetSocketAddress[], Object)
+     */
+    public void setConnectAttemptDelay(long connectAttemptDelay)
+    {
+        _connectAttemptDelay=connectAttemptDelay;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Connect to one of the addresses of a host.
+     * <p>
+     * The addresses are tried in the manner of RFC 8305 (Happy Eyeballs).  They are
+     * reordered to alternate between the address families, starting with the family of
+     * the first address, which is the preferred one.  The first address is tried at once,
+     * and each following address once the previous attempt fails or after the
+     * {@link #getConnectAttemptDelay() connect attempt delay}, whichever is first, while
+     * the earlier attempts continue.  The first channel to finish connecting is handled as
+     * a registered channel and the other attempts are closed.  If all attempts fail,
+     * {@link #connectionFailed(SocketChannel, Throwable, Object)} is called with the last failure.
+     * <p>
+     * The attempts are made and timed by the selector thread of a single select set.
+     * Channels are created by {@link #newChannel(Object)}.
+     * @param addresses The addresses to try, in order of preference
+     * @param att Attached Object
+     * @return A handle that closes the attempts in progress, or the connected channel, when closed
+     */
+    public Closeable connect(InetSocketAddress[] addresses, Object att)
+    {
+        if (addresses.length==0)
+            throw new IllegalArgumentException("No addresses");
+
+        int s=_set++;
+        if (s<0)
+            s=-s;
+        s=s%_selectSets;
+        SelectSet[] sets=_selectSet;
+        if (sets==null)
+            throw new IllegalStateException("!started");
+        SelectSet set=sets[s];
+        SelectSet.Connect connect=set.new Connect(interleave(addresses),att);
+        set.addChange(connect);
+        set.wakeup();
+        return connect;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Order addresses to alternate between address families, starting with the family of the first.
+     */
+    private static InetSocketAddress[] interleave(InetSocketAddress[] addresses)
+    {
+        List<InetSocketAddress> preferred=new ArrayList<InetSocketAddress>();
+        List<InetSocketAddress> other=new ArrayList<InetSocketAddress>();
+        Class<?> family=family(addresses[0]);
+        for (InetSocketAddress address : addresses)
+            (family(address)==family?preferred:other).add(address);
+
+        InetSocketAddress[] ordered=new InetSocketAddress[addresses.length];
+        int p=0;
+        int o=0;
+        for (int i=0;i<ordered.length;i++)
+            ordered[i]=(o==other.size() || p<preferred.size() && (i%2)==0)?preferred.get(p++):other.get(o++);
+        return ordered;
+    }
+
+    /* ------------------------------------------------------------ */
+    private static Class<?> family(InetSocketAddress address)
+    {
+        return address.getAddress()==null?null:address.getAddress().getClass();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Create an unconnected channel for {@link #connect(InetSocketAddress[], Object)}.
+     * @param att The object attached to the connection
+     * @return A non blocking channel
+     * @throws IOException if the channel cannot be created
+     */
+    protected SocketChannel newChannel(Object att) throws IOException
+    {
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        return channel;
+    }
+
     /* ------------------------------------------------------------ */
     /** Register a {@link ServerSocketChannel}
      * @param acceptChannel
@@ -392,6 +495,8 @@ public abstract class SelectorManager extends AbstractLifeCycle implements Dumpa
         private final Timeout _timeout;
 
         private final ConcurrentLinkedQueue<Object> _changes = new ConcurrentLinkedQueue<Object>();
+        private final ConcurrentLinkedQueue<SelectChannelEndPoint> _flushes = new ConcurrentLinkedQueue<SelectChannelEndPoint>();
+        private final AtomicBoolean _flushWakeup = new AtomicBoolean();
 
         private volatile Selector _selector;
 
@@ -401,6 +506,7 @@ public abstract class SelectorManager extends AbstractLifeCycle implements Dumpa
         private boolean _pausing;
         private boolean _paused;
         private volatile long _idleTick;
+        private volatile long _selectUntil;
         private ConcurrentMap<SelectChannelEndPoint,Object> _endPoints = new ConcurrentHashMap<SelectChannelEndPoint, Object>();
 
         /* ------------------------------------------------------------ */
@@ -423,6 +529,20 @@ public abstract class SelectorManager extends AbstractLifeCycle implements Dumpa
             _changes.add(change);
         }
 
+        /* ------------------------------------------------------------ */
+        /**
+         * Add an endpoint to the set flushed by the next pass of the select loop.
+         * Only the first flush added since the last pass wakes the selector, so
+         * many senders produce a single wakeup and a single pass.
+         * @param endpoint the endpoint with pending output
+         */
+        public void addFlush(SelectChannelEndPoint endpoint)
+        {
+            _flushes.add(endpoint);
+            if (_flushWakeup.compareAndSet(false,true))
+                wakeup();
+        }
+
         /* ------------------------------------------------------------ */
         public void addChange(SelectableChannel channel, Object att)
         {
@@ -531,6 +651,23 @@ public abstract class SelectorManager extends AbstractLifeCycle implements Dumpa
                     }
                 }
 
+                // Flush all endpoints that have had output added since the last pass.
+                // The wakeup flag is cleared before polling, so a flush added after
+                // the poll always wakes the next pass.
+                _flushWakeup.set(false);
+                SelectChannelEndPoint flush;
+                int flushes=_flushes.size();
+                while (flushes-->0 && (flush=_flushes.poll())!=null)
+                {
+                    try
+                    {
+                        flush.doFlush();
+                    }
+                    catch (Throwable e)
+                    {
+                        LOG.warn(e);
+                    }
+                }
 
                 // Do and instant select to see if any connections can be handled.
                 int selected=selector.selectNow();
@@ -554,11 +691,13 @@ public abstract class SelectorManager extends AbstractLifeCycle implements Dumpa
                         now=System.currentTimeMillis();
                     }
 
-                    // workout how long to wait in select
+                    // workout how long to wait in select. Until it is known, a
+                    // timeout scheduled concurrently must wake the selector
+                    _selectUntil=Long.MAX_VALUE;
                     _timeout.setNow(now);
                     long to_next_timeout=_timeout.getTimeToNext();
 
-                    long wait = _changes.size()==0?__IDLE_TICK:0L;
+                    long wait = _changes.size()==0 && _flushes.isEmpty()?__IDLE_TICK:0L;
                     if (wait > 0 && to_next_timeout >= 0 && wait > to_next_timeout)
                         wait = to_next_timeout;
 
@@ -566,7 +705,9 @@ public abstract class SelectorManager extends AbstractLifeCycle implements Dumpa
                     if (wait>0)
                     {
                         long before=now;
+                        _selectUntil=now+wait;
                         selector.select(wait);
+                        _selectUntil=0;
                         now = System.currentTimeMillis();
                         _timeout.setNow(now);
 
@@ -606,9 +747,8 @@ public abstract class SelectorManager extends AbstractLifeCycle implements Dumpa
                         if (!key.isValid())
                         {
                             key.cancel();
-                            SelectChannelEndPoint endpoint = (SelectChannelEndPoint)key.attachment();
-                            if (endpoint != null)
-                                endpoint.doUpdateKey();
+                            if (key.attachment() instanceof SelectChannelEndPoint)
+                                ((SelectChannelEndPoint)key.attachment()).doUpdateKey();
                             continue;
                         }
 
@@ -618,6 +758,11 @@ public abstract class SelectorManager extends AbstractLifeCycle implements Dumpa
                             if (key.isReadable()||key.isWritable())
                                 ((SelectChannelEndPoint)att).schedule();
                         }
+                        else if (att instanceof Connect)
+                        {
+                            if (key.isConnectable())
+                                ((Connect)att).connectable(key);
+                        }
                         else if (key.isConnectable())
                         {
                             // Complete a connection of a registered channel
@@ -634,12 +779,7 @@ public abstract class SelectorManager extends AbstractLifeCycle implements Dumpa
                             finally
                             {
                                 if (connected)
-                                {
-                                    key.interestOps(SelectionKey.OP_READ);
-                                    SelectChannelEndPoint endpoint = createEndPoint(channel,key);
-                                    key.attach(endpoint);
-                                    endpoint.schedule();
-                                }
+                                    connected(channel,key);
                                 else
                                 {
                                     key.cancel();
@@ -692,7 +832,9 @@ public abstract class SelectorManager extends AbstractLifeCycle implements Dumpa
                 Task task = _timeout.expired();
                 while (task!=null)
                 {
-                    if (task instanceof Runnable)
+                    if (task instanceof ChangeTask)
+                        ((Runnable)task).run();
+                    else if (task instanceof Runnable)
                         dispatch((Runnable)task);
                     task = _timeout.expired();
                 }
@@ -795,6 +937,8 @@ public abstract class SelectorManager extends AbstractLifeCycle implements Dumpa
 
         /* ------------------------------------------------------------ */
         /**
+         * Schedule a timeout, waking the selector only if it is waiting in a select
+         * that would return after the timeout has expired.
          * @param task The task to timeout. If it implements Runnable, then
          * expired will be called from a dispatched thread.
          *
@@ -805,6 +949,8 @@ public abstract class SelectorManager extends AbstractLifeCycle implements Dumpa
             if (!(task instanceof Runnable))
                 throw new IllegalArgumentException("!Runnable");
             _timeout.schedule(task, timeoutMs);
+            if (_timeout.getNow()+timeoutMs<_selectUntil)
+                wakeup();
         }
 
         /* ------------------------------------------------------------ */
@@ -846,6 +992,19 @@ public abstract class SelectorManager extends AbstractLifeCycle implements Dumpa
             return endp;
         }
 
+        /* ------------------------------------------------------------ */
+        /**
+         * Handle a channel that has finished connecting.  The key is attached to the
+         * connection's attachment, which is replaced by the new endpoint.
+         */
+        private void connected(SocketChannel channel, SelectionKey key) throws IOException
+        {
+            key.interestOps(SelectionKey.OP_READ);
+            SelectChannelEndPoint endpoint = createEndPoint(channel,key);
+            key.attach(endpoint);
+            endpoint.schedule();
+        }
+
         /* ------------------------------------------------------------ */
         public void destroyEndPoint(SelectChannelEndPoint endp)
         {
@@ -996,6 +1155,199 @@ public abstract class SelectorManager extends AbstractLifeCycle implements Dumpa
                     selector != null && selector.isOpen() ? selector.keys().size() : -1,
                     selector != null && selector.isOpen() ? selector.selectedKeys().size() : -1);
         }
+
+        /* ------------------------------------------------------------ */
+        /* ------------------------------------------------------------ */
+        /**
+         * The connection attempts of {@link SelectorManager#connect(InetSocketAddress[], Object)}.
+         * Run as a change to make the first attempt, and as a timeout task, on the selector
+         * thread, to make each following attempt after the connect attempt delay.
+         */
+        class Connect extends Timeout.Task implements ChangeTask, Closeable
+        {
+            private final InetSocketAddress[] _addresses;
+            private final Object _attachment;
+            private final List<SocketChannel> _attempts = new ArrayList<SocketChannel>();
+            private int _next;
+            private boolean _closed;
+            private SocketChannel _connected;
+            private SocketChannel _failed;
+            private Throwable _failure;
+
+            Connect(InetSocketAddress[] addresses, Object attachment)
+            {
+                _addresses=addresses;
+                _attachment=attachment;
+            }
+
+            /* ------------------------------------------------------------ */
+            public void run()
+            {
+                attempt();
+            }
+
+            /* ------------------------------------------------------------ */
+            /**
+             * Start the next attempt, or fail if there is none and no attempt is in progress.
+             */
+            private void attempt()
+            {
+                synchronized (this)
+                {
+                    if (_closed || _connected!=null)
+                        return;
+                }
+
+                while (_next<_addresses.length)
+                {
+                    InetSocketAddress address=_addresses[_next++];
+                    SocketChannel channel=null;
+                    try
+                    {
+                        channel=newChannel(_attachment);
+                        synchronized (this)
+                        {
+                            if (_closed || _connected!=null)
+                            {
+                                channel.close();
+                                return;
+                            }
+                            _attempts.add(channel);
+                        }
+
+                        LOG.debug("connect {} {}",address,_attachment);
+                        boolean connected=channel.connect(address);
+                        SelectionKey key=channel.register(_selector,SelectionKey.OP_CONNECT,this);
+                        if (connected)
+                            won(channel,key);
+                        else if (_next<_addresses.length)
+                            _timeout.schedule(this,_connectAttemptDelay);
+                        return;
+                    }
+                    catch (Exception e)
+                    {
+                        // Try the next address now
+                        LOG.debug(e);
+                        lost(channel,e);
+                    }
+                }
+
+                boolean failed;
+                synchronized (this)
+                {
+                    failed=!_closed && _connected==null && _attempts.isEmpty();
+                    if (failed)
+                        _closed=true;
+                }
+                if (failed)
+                    connectionFailed(_failed,_failure,_attachment);
+            }
+
+            /* ------------------------------------------------------------ */
+            /**
+             * Finish connecting a channel that the selector reports connectable.
+             */
+            void connectable(SelectionKey key)
+            {
+                SocketChannel channel=(SocketChannel)key.channel();
+                try
+                {
+                    if (channel.finishConnect())
+                        won(channel,key);
+                }
+                catch (Exception e)
+                {
+                    // Try the next address now rather than after the delay
+                    LOG.debug(e);
+                    key.cancel();
+                    lost(channel,e);
+                    cancel();
+                    attempt();
+                }
+            }
+
+            /* ------------------------------------------------------------ */
+            private void lost(SocketChannel channel, Throwable failure)
+            {
+                if (channel!=null)
+                {
+                    synchronized (this)
+                    {
+                        _attempts.remove(channel);
+                    }
+                    IO.close(channel);
+                }
+                _failed=channel;
+                _failure=failure;
+            }
+
+            /* ------------------------------------------------------------ */
+            private void won(SocketChannel channel, SelectionKey key)
+            {
+                List<SocketChannel> losers;
+                synchronized (this)
+                {
+                    if (_closed)
+                    {
+                        key.cancel();
+                        IO.close(channel);
+                        return;
+                    }
+                    _connected=channel;
+                    _attempts.remove(channel);
+                    losers=new ArrayList<SocketChannel>(_attempts);
+                    _attempts.clear();
+                }
+                cancel();
+                for (SocketChannel loser : losers)
+                    IO.close(loser);
+
+                LOG.debug("connected {} {}",channel,_attachment);
+                key.attach(_attachment);
+                try
+                {
+                    connected(channel,key);
+                }
+                catch (IOException e)
+                {
+                    key.cancel();
+                    IO.close(channel);
+                    connectionFailed(channel,e,_attachment);
+                }
+            }
+
+            /* ------------------------------------------------------------ */
+            /**
+             * Close the attempts in progress, or the connected channel.
+             */
+            public void close() throws IOException
+            {
+                List<SocketChannel> channels;
+                synchronized (this)
+                {
+                    _closed=true;
+                    channels=new ArrayList<SocketChannel>(_attempts);
+                    _attempts.clear();
+                    if (_connected!=null)
+                        channels.add(_connected);
+                }
+                cancel();
+                for (SocketChannel channel : channels)
+                    IO.close(channel);
+            }
+
+            /* ------------------------------------------------------------ */
+            @Override
+            public synchronized String toString()
+            {
+                return String.format("Connect@%x{%d/%d,attempts=%d,connected=%s}",
+                        hashCode(),
+                        _next,
+                        _addresses.length,
+                        _attempts.size(),
+                        _connected);
+            }
+        }
     }
 
     /* ------------------------------------------------------------ */
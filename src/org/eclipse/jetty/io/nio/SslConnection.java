@@ -20,6 +20,8 @@ package org.eclipse.jetty.io.nio;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
@@ -61,9 +63,41 @@ public class SslConnection extends AbstractConnection implements AsyncConnection
     private NIOBuffer _inbound;
     private NIOBuffer _unwrapBuf;
     private NIOBuffer _outbound;
+    private ByteBuffer _fillView;
+    private ByteBuffer _flushView;
     private AsyncEndPoint _aEndp;
     private boolean _allowRenegotiate=true;
     private boolean _handshook;
+    private final long _created=System.currentTimeMillis();
+    private final long _handshakeStart=System.nanoTime();
+    private volatile long _handshakeTime=-1;
+    private volatile boolean _resumed;
+    private volatile HandshakeListener _handshakeListener;
+    private volatile Executor _taskExecutor;
+    private boolean _tasksPending;
+    private final Runnable _delegatedTasks = new Runnable()
+    {
+        public void run()
+        {
+            try
+            {
+                runDelegatedTasks();
+            }
+            catch(RuntimeException e)
+            {
+                _logger.warn(e);
+            }
+            finally
+            {
+                synchronized (SslConnection.this)
+                {
+                    _tasksPending=false;
+                }
+                // resume the handshake, even if this connection is being handled now
+                _aEndp.asyncDispatch();
+            }
+        }
+    };
     private boolean _ishut;
     private boolean _oshut;
     private final AtomicBoolean _progressed = new AtomicBoolean();
@@ -132,6 +166,108 @@ public class SslConnection extends AbstractConnection implements AsyncConnection
         _allowRenegotiate = allowRenegotiate;
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * @param listener The listener notified when the first handshake has completed
+     */
+    public void setHandshakeListener(HandshakeListener listener)
+    {
+        _handshakeListener=listener;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The time in ns from the creation of this connection to the completion of the
+     * first handshake, or -1 if the handshake has not completed
+     */
+    public long getHandshakeTime()
+    {
+        return _handshakeTime;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * The session is taken to be resumed if its creation time is before this connection was
+     * created.  This is only reliable for TLS 1.2 and earlier, which resume the cached session
+     * object itself.  A TLS 1.3 (PSK) resumption may create a new session with a new creation
+     * time, and a session created by another connection in the same millisecond as this one
+     * is not seen as earlier, so both are reported as not resumed.
+     * @return True if the first handshake resumed a cached session rather than creating one
+     */
+    public boolean isResumed()
+    {
+        return _resumed;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The executor of the engine's delegated tasks, or null if they are run by the
+     * thread processing the connection
+     */
+    public Executor getDelegatedTaskExecutor()
+    {
+        return _taskExecutor;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Set the executor of the engine's delegated tasks.  The tasks of a handshake, such as
+     * certificate validation and key exchange, may take a lot of CPU.  If they are run by an
+     * executor, the thread processing the connection is released to handle other endpoints,
+     * and the endpoint is dispatched to resume the handshake when the tasks are done.
+     * An executor with a few threads limits the CPU that concurrent handshakes take from
+     * established connections.
+     * @param executor The executor of delegated tasks, or null to run them on the thread
+     * processing the connection
+     */
+    public void setDelegatedTaskExecutor(Executor executor)
+    {
+        _taskExecutor=executor;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return True if any task was run
+     */
+    private boolean runDelegatedTasks()
+    {
+        boolean ran=false;
+        Runnable task;
+        while ((task=_engine.getDelegatedTask())!=null)
+        {
+            ran=true;
+            task.run();
+        }
+        return ran;
+    }
+
+    /* ------------------------------------------------------------ */
+    private void handshook()
+    {
+        if (_handshook)
+            return;
+        _handshook=true;
+        _handshakeTime=System.nanoTime()-_handshakeStart;
+
+        // A resumed session was created by an earlier connection (reliable up to TLS 1.2)
+        SSLSession session=_engine.getSession();
+        _resumed=session!=null && session.getCreationTime()<_created;
+        _logger.debug("handshook {} resumed={} {}ns",session,_resumed,_handshakeTime);
+
+        HandshakeListener listener=_handshakeListener;
+        if (listener!=null)
+        {
+            try
+            {
+                listener.handshakeSucceeded(this);
+            }
+            catch(RuntimeException e)
+            {
+                _logger.warn(e);
+            }
+        }
+    }
+
     /* ------------------------------------------------------------ */
     private void allocateBuffers()
     {
@@ -200,7 +336,8 @@ public class SslConnection extends AbstractConnection implements AsyncConnection
                     progress=true;
                 }
 
-                _logger.debug("{} handle {} progress={}", _session, this, progress);
+                if (_logger.isDebugEnabled())
+                    _logger.debug("{} handle {} progress={}", _session, this, progress);
             }
         }
         finally
@@ -236,7 +373,9 @@ public class SslConnection extends AbstractConnection implements AsyncConnection
     /* ------------------------------------------------------------ */
     public boolean isSuspended()
     {
-        return false;
+        // The endpoint drops read interest while the connection on the SSL endpoint is suspended
+        AsyncConnection connection=_connection;
+        return connection!=null && connection.isSuspended();
     }
 
     /* ------------------------------------------------------------ */
@@ -329,7 +468,8 @@ public class SslConnection extends AbstractConnection implements AsyncConnection
                 int filled=0,flushed=0;
                 try
                 {
-                    // Read any available data
+                    // Read any available data, after any partial record left by the last unwrap
+                    _inbound.compact();
                     if (_inbound.space()>0 && (filled=_endp.fill(_inbound))>0)
                         progress = true;
 
@@ -344,7 +484,8 @@ public class SslConnection extends AbstractConnection implements AsyncConnection
                 }
                 finally
                 {
-                    _logger.debug("{} {} {} filled={}/{} flushed={}/{}",_session,this,_engine.getHandshakeStatus(),filled,_inbound.length(),flushed,_outbound.length());
+                    if (_logger.isDebugEnabled())
+                        _logger.debug("{} {} {} filled={}/{} flushed={}/{}",_session,this,_engine.getHandshakeStatus(),filled,_inbound.length(),flushed,_outbound.length());
                 }
 
                 // handle the current hand share status
@@ -355,26 +496,49 @@ public class SslConnection extends AbstractConnection implements AsyncConnection
 
                     case NOT_HANDSHAKING:
                     {
-                        // Try unwrapping some application data
-                        if (toFill.space()>0 && _inbound.hasContent() && unwrap(toFill))
+                        // Unwrap all the records that have been read and fit the fill buffer
+                        while (toFill.space()>0 && _inbound.hasContent() && unwrap(toFill))
+                        {
                             progress=true;
+                            if (_engine.getHandshakeStatus()!=HandshakeStatus.NOT_HANDSHAKING)
+                                break;
+                        }
 
-                        // Try wrapping some application data
-                        if (toFlush.hasContent() && _outbound.space()>0 && wrap(toFlush))
+                        // Wrap as many records as fit the outbound buffer, so they are flushed together
+                        while (toFlush.hasContent() && _outbound.space()>0 && wrap(toFlush))
+                        {
                             progress=true;
+                            if (_engine.getHandshakeStatus()!=HandshakeStatus.NOT_HANDSHAKING)
+                                break;
+                        }
                     }
                     break;
 
                     case NEED_TASK:
                     {
-                        // A task needs to be run, so run it!
-                        Runnable task;
-                        while ((task=_engine.getDelegatedTask())!=null)
+                        Executor executor=_taskExecutor;
+                        if (executor==null)
                         {
-                            progress=true;
-                            task.run();
+                            // A task needs to be run, so run it!
+                            if (runDelegatedTasks())
+                                progress=true;
+                        }
+                        else if (!_tasksPending)
+                        {
+                            // Have the executor run the tasks and dispatch us when they are done
+                            _tasksPending=true;
+                            try
+                            {
+                                executor.execute(_delegatedTasks);
+                            }
+                            catch(RejectedExecutionException e)
+                            {
+                                _logger.debug(e);
+                                _tasksPending=false;
+                                if (runDelegatedTasks())
+                                    progress=true;
+                            }
                         }
-
                     }
                     break;
 
@@ -440,50 +604,49 @@ public class SslConnection extends AbstractConnection implements AsyncConnection
         }
     }
 
-    private synchronized boolean wrap(final Buffer buffer) throws IOException
+    /* ------------------------------------------------------------ */
+    /* Called only from process, so the buffers are guarded by its lock
+     */
+    private boolean wrap(final Buffer buffer) throws IOException
     {
-        ByteBuffer bbuf=extractByteBuffer(buffer);
+        ByteBuffer bbuf=extractByteBuffer(buffer,_flushView);
+        if (!(buffer.buffer() instanceof NIOBuffer))
+            _flushView=bbuf;
         final SSLEngineResult result;
 
-        synchronized(bbuf)
+        _outbound.compact();
+        ByteBuffer out_buffer=_outbound.getByteBuffer();
+        try
         {
-            _outbound.compact();
-            ByteBuffer out_buffer=_outbound.getByteBuffer();
-            synchronized(out_buffer)
-            {
-                try
-                {
-                    bbuf.position(buffer.getIndex());
-                    bbuf.limit(buffer.putIndex());
-                    out_buffer.position(_outbound.putIndex());
-                    out_buffer.limit(out_buffer.capacity());
-                    result=_engine.wrap(bbuf,out_buffer);
-                    if (_logger.isDebugEnabled())
-                        _logger.debug("{} wrap {} {} consumed={} produced={}",
-                            _session,
-                            result.getStatus(),
-                            result.getHandshakeStatus(),
-                            result.bytesConsumed(),
-                            result.bytesProduced());
-
-
-                    buffer.skip(result.bytesConsumed());
-                    _outbound.setPutIndex(_outbound.putIndex()+result.bytesProduced());
-                }
-                catch(SSLException e)
-                {
-                    _logger.debug(String.valueOf(_endp), e);
-                    _endp.close();
-                    throw e;
-                }
-                finally
-                {
-                    out_buffer.position(0);
-                    out_buffer.limit(out_buffer.capacity());
-                    bbuf.position(0);
-                    bbuf.limit(bbuf.capacity());
-                }
-            }
+            bbuf.position(buffer.getIndex());
+            bbuf.limit(buffer.putIndex());
+            out_buffer.position(_outbound.putIndex());
+            out_buffer.limit(out_buffer.capacity());
+            result=_engine.wrap(bbuf,out_buffer);
+            if (_logger.isDebugEnabled())
+                _logger.debug("{} wrap {} {} consumed={} produced={}",
+                    _session,
+                    result.getStatus(),
+                    result.getHandshakeStatus(),
+                    result.bytesConsumed(),
+                    result.bytesProduced());
+
+
+            buffer.skip(result.bytesConsumed());
+            _outbound.setPutIndex(_outbound.putIndex()+result.bytesProduced());
+        }
+        catch(SSLException e)
+        {
+            _logger.debug(String.valueOf(_endp), e);
+            _endp.close();
+            throw e;
+        }
+        finally
+        {
+            out_buffer.position(0);
+            out_buffer.limit(out_buffer.capacity());
+            bbuf.position(0);
+            bbuf.limit(bbuf.capacity());
         }
 
         switch(result.getStatus())
@@ -496,7 +659,7 @@ public class SslConnection extends AbstractConnection implements AsyncConnection
 
             case OK:
                 if (result.getHandshakeStatus()==HandshakeStatus.FINISHED)
-                    _handshook=true;
+                    handshook();
                 break;
 
             case CLOSED:
@@ -513,53 +676,52 @@ public class SslConnection extends AbstractConnection implements AsyncConnection
         return result.bytesConsumed()>0 || result.bytesProduced()>0;
     }
 
-    private synchronized boolean unwrap(final Buffer buffer) throws IOException
+    /* ------------------------------------------------------------ */
+    /* Called only from process, so the buffers are guarded by its lock.
+     * The inbound buffer is compacted by process before it is next filled.
+     */
+    private boolean unwrap(final Buffer buffer) throws IOException
     {
         if (!_inbound.hasContent())
             return false;
 
-        ByteBuffer bbuf=extractByteBuffer(buffer);
+        ByteBuffer bbuf=extractByteBuffer(buffer,_fillView);
+        if (!(buffer.buffer() instanceof NIOBuffer))
+            _fillView=bbuf;
         final SSLEngineResult result;
 
-        synchronized(bbuf)
+        ByteBuffer in_buffer=_inbound.getByteBuffer();
+        try
         {
-            ByteBuffer in_buffer=_inbound.getByteBuffer();
-            synchronized(in_buffer)
-            {
-                try
-                {
-                    bbuf.position(buffer.putIndex());
-                    bbuf.limit(buffer.capacity());
-                    in_buffer.position(_inbound.getIndex());
-                    in_buffer.limit(_inbound.putIndex());
-
-                    result=_engine.unwrap(in_buffer,bbuf);
-                    if (_logger.isDebugEnabled())
-                        _logger.debug("{} unwrap {} {} consumed={} produced={}",
-                            _session,
-                            result.getStatus(),
-                            result.getHandshakeStatus(),
-                            result.bytesConsumed(),
-                            result.bytesProduced());
-
-                    _inbound.skip(result.bytesConsumed());
-                    _inbound.compact();
-                    buffer.setPutIndex(buffer.putIndex()+result.bytesProduced());
-                }
-                catch(SSLException e)
-                {
-                    _logger.debug(String.valueOf(_endp), e);
-                    _endp.close();
-                    throw e;
-                }
-                finally
-                {
-                    in_buffer.position(0);
-                    in_buffer.limit(in_buffer.capacity());
-                    bbuf.position(0);
-                    bbuf.limit(bbuf.capacity());
-                }
-            }
+            bbuf.position(buffer.putIndex());
+            bbuf.limit(buffer.capacity());
+            in_buffer.position(_inbound.getIndex());
+            in_buffer.limit(_inbound.putIndex());
+
+            result=_engine.unwrap(in_buffer,bbuf);
+            if (_logger.isDebugEnabled())
+                _logger.debug("{} unwrap {} {} consumed={} produced={}",
+                    _session,
+                    result.getStatus(),
+                    result.getHandshakeStatus(),
+                    result.bytesConsumed(),
+                    result.bytesProduced());
+
+            _inbound.skip(result.bytesConsumed());
+            buffer.setPutIndex(buffer.putIndex()+result.bytesProduced());
+        }
+        catch(SSLException e)
+        {
+            _logger.debug(String.valueOf(_endp), e);
+            _endp.close();
+            throw e;
+        }
+        finally
+        {
+            in_buffer.position(0);
+            in_buffer.limit(in_buffer.capacity());
+            bbuf.position(0);
+            bbuf.limit(bbuf.capacity());
         }
 
         switch(result.getStatus())
@@ -575,7 +737,7 @@ public class SslConnection extends AbstractConnection implements AsyncConnection
 
             case OK:
                 if (result.getHandshakeStatus()==HandshakeStatus.FINISHED)
-                    _handshook=true;
+                    handshook();
                 break;
 
             case CLOSED:
@@ -597,11 +759,20 @@ public class SslConnection extends AbstractConnection implements AsyncConnection
 
 
     /* ------------------------------------------------------------ */
-    private ByteBuffer extractByteBuffer(Buffer buffer)
+    /**
+     * @param buffer The buffer to pass to the engine
+     * @param view The view returned by the last call for the same direction, or null
+     * @return The ByteBuffer of an NIO buffer, else the passed view if it wraps the array
+     * of the buffer, else a new view of the array, which the caller keeps to pass next time.
+     */
+    private static ByteBuffer extractByteBuffer(Buffer buffer, ByteBuffer view)
     {
         if (buffer.buffer() instanceof NIOBuffer)
             return ((NIOBuffer)buffer.buffer()).getByteBuffer();
-        return ByteBuffer.wrap(buffer.array());
+        byte[] array=buffer.array();
+        if (view!=null && view.hasArray() && view.array()==array && view.arrayOffset()==0)
+            return view;
+        return ByteBuffer.wrap(array);
     }
 
     /* ------------------------------------------------------------ */
@@ -625,6 +796,11 @@ public class SslConnection extends AbstractConnection implements AsyncConnection
             return _engine;
         }
 
+        public SslConnection getSslConnection()
+        {
+            return SslConnection.this;
+        }
+
         public AsyncEndPoint getEndpoint()
         {
             return _aEndp;
@@ -753,6 +929,11 @@ public class SslConnection extends AbstractConnection implements AsyncConnection
             _aEndp.scheduleWrite();
         }
 
+        public void scheduleFlush()
+        {
+            _aEndp.scheduleFlush();
+        }
+
         public void onIdleExpired(long idleForMs)
         {
             _aEndp.onIdleExpired(idleForMs);
@@ -862,4 +1043,17 @@ public class SslConnection extends AbstractConnection implements AsyncConnection
         }
 
     }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /**
+     * A listener for the completion of the first handshake of a connection.
+     */
+    public interface HandshakeListener
+    {
+        /**
+         * @param connection The connection, whose {@link SslConnection#getSslEndPoint() endpoint's} engine has the new session
+         */
+        void handshakeSucceeded(SslConnection connection);
+    }
 }
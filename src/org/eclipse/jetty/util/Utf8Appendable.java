@@ -47,13 +47,13 @@ import java.io.IOException;
 public abstract class Utf8Appendable
 {
     public static final char REPLACEMENT = '\ufffd';
-    private static final int UTF8_ACCEPT = 0;
-    private static final int UTF8_REJECT = 12;
+    static final int UTF8_ACCEPT = 0;
+    static final int UTF8_REJECT = 12;
 
     protected final Appendable _appendable;
     protected int _state = UTF8_ACCEPT;
 
-    private static final byte[] BYTE_TABLE =
+    static final byte[] BYTE_TABLE =
     {
         // The first part of the table maps bytes to character classes that
         // to reduce the size of the transition table and create bitmasks.
@@ -67,7 +67,7 @@ public abstract class Utf8Appendable
         10,3,3,3,3,3,3,3,3,3,3,3,3,4,3,3, 11,6,6,6,5,8,8,8,8,8,8,8,8,8,8,8
     };
 
-    private static final byte[] TRANS_TABLE =
+    static final byte[] TRANS_TABLE =
     {
         // The second part is a transition table that maps a combination
         // of a state of the automaton and a character class to a state.
@@ -92,16 +92,37 @@ public abstract class Utf8Appendable
         _state = UTF8_ACCEPT;
     }
 
+    /**
+     * Append UTF-8 encoded bytes.
+     * Runs of ASCII are found 8 bytes at a time and appended in bulk, so only non-ASCII
+     * bytes go through the decoder.  The size limit is checked once per run, with the
+     * run shortened so that the result is the same as checking before every byte.
+     * @return false if maxChars was exceeded before all the bytes were appended
+     */
     public boolean append(byte[] b, int offset, int length, int maxChars)
     {
         try
         {
+            int i = offset;
             int end = offset + length;
-            for (int i = offset; i < end; i++)
+            while (i < end)
             {
-                if (length() > maxChars)
+                int chars = length();
+                if (chars > maxChars)
                     return false;
-                appendByte(b[i]);
+
+                if (_state == UTF8_ACCEPT && b[i] >= 0)
+                {
+                    int run = asciiRun(b, i, end);
+                    int room = maxChars - chars;
+                    if (room < run)
+                        run = room + 1;
+                    appendAscii(b, i, run);
+                    i += run;
+                    continue;
+                }
+
+                appendByte(b[i++]);
             }
             return true;
         }
@@ -111,6 +132,31 @@ public abstract class Utf8Appendable
         }
     }
 
+    /**
+     * @return The number of ASCII bytes starting at offset
+     */
+    static int asciiRun(byte[] b, int offset, int end)
+    {
+        int i = offset;
+        int words = end - 8;
+        while (i <= words && (b[i] | b[i + 1] | b[i + 2] | b[i + 3] | b[i + 4] | b[i + 5] | b[i + 6] | b[i + 7]) >= 0)
+            i += 8;
+        while (i < end && b[i] >= 0)
+            i++;
+        return i - offset;
+    }
+
+    /**
+     * Append a run of ASCII bytes, which need no decoding.
+     * Subclasses may override to append the run in one operation.
+     */
+    protected void appendAscii(byte[] b, int offset, int length) throws IOException
+    {
+        int end = offset + length;
+        for (int i = offset; i < end; i++)
+            _appendable.append((char)b[i]);
+    }
+
     protected void appendByte(byte b) throws IOException
     {
 
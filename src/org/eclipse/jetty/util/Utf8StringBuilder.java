@@ -34,6 +34,7 @@ package org.eclipse.jetty.util;
 public class Utf8StringBuilder extends Utf8Appendable
 {
     final StringBuilder _buffer;
+    private char[] _ascii;
 
     public Utf8StringBuilder(int capacity)
     {
@@ -47,6 +48,23 @@ public class Utf8StringBuilder extends Utf8Appendable
         return _buffer.length();
     }
 
+    @Override
+    protected void appendAscii(byte[] b, int offset, int length)
+    {
+        if (_ascii==null)
+            _ascii=new char[256];
+        char[] chars=_ascii;
+        while (length>0)
+        {
+            int chunk=length<chars.length?length:chars.length;
+            for (int i=0;i<chunk;i++)
+                chars[i]=(char)b[offset+i];
+            _buffer.append(chars,0,chunk);
+            offset+=chunk;
+            length-=chunk;
+        }
+    }
+
     @Override
     public void reset()
     {
@@ -60,4 +78,17 @@ public class Utf8StringBuilder extends Utf8Appendable
         checkState();
         return _buffer.toString();
     }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Take the characters decoded so far, leaving any incomplete UTF-8 sequence
+     * to be completed by subsequent appends.
+     * @return The decoded characters, which are removed from this builder
+     */
+    public String takePartialString()
+    {
+        String partial=_buffer.toString();
+        _buffer.setLength(0);
+        return partial;
+    }
 }
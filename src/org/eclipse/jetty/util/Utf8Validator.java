@@ -0,0 +1,91 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.util;
+
+/* ------------------------------------------------------------ */
+/** UTF-8 Validator.
+ *
+ * Runs the {@link Utf8Appendable} DFA over UTF-8 encoded bytes purely to validate them,
+ * without producing any characters.  The state is kept between calls to
+ * {@link #validate(byte[], int, int)}, so a sequence may be split between them.
+ * Runs of ASCII are skipped 8 bytes at a time.
+ */
+public class Utf8Validator
+{
+    private int _state = Utf8Appendable.UTF8_ACCEPT;
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @throws Utf8Appendable.NotUtf8Exception if the bytes are not valid UTF-8, in which case the validator is reset
+     */
+    public void validate(byte[] b, int offset, int length)
+    {
+        final byte[] bytes = Utf8Appendable.BYTE_TABLE;
+        final byte[] trans = Utf8Appendable.TRANS_TABLE;
+        int state = _state;
+        int i = offset;
+        int end = offset + length;
+        while (i < end)
+        {
+            if (state == Utf8Appendable.UTF8_ACCEPT)
+            {
+                i += Utf8Appendable.asciiRun(b, i, end);
+                if (i == end)
+                    break;
+            }
+
+            byte c = b[i++];
+            int next = trans[state + bytes[c & 0xFF]];
+            if (next == Utf8Appendable.UTF8_REJECT)
+            {
+                _state = Utf8Appendable.UTF8_ACCEPT;
+                throw new Utf8Appendable.NotUtf8Exception("byte "+TypeUtil.toHexString(c)+" in state "+(state/12));
+            }
+            state = next;
+        }
+        _state = state;
+    }
+
+    /* ------------------------------------------------------------ */
+    public boolean isUtf8SequenceComplete()
+    {
+        return _state == Utf8Appendable.UTF8_ACCEPT;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Check that the bytes validated since the last reset do not end within a sequence,
+     * then reset.
+     * @throws Utf8Appendable.NotUtf8Exception if a sequence is incomplete
+     */
+    public void complete()
+    {
+        if (!isUtf8SequenceComplete())
+        {
+            reset();
+            throw new Utf8Appendable.NotUtf8Exception("incomplete UTF8 sequence");
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    public void reset()
+    {
+        _state = Utf8Appendable.UTF8_ACCEPT;
+    }
+}
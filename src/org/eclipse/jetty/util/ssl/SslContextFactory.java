@@ -33,14 +33,17 @@ import java.security.cert.X509CertSelector;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Enumeration;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.net.ssl.CertPathTrustManagerParameters;
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509KeyManager;
@@ -164,6 +167,16 @@ public class SslContextFactory extends AbstractLifeCycle
     private KeyStore _trustStore;
     /** Set to true to enable SSL Session caching */
     private boolean _sessionCachingEnabled = true;
+    /** SSL session cache size, or 0 for the provider default */
+    private int _sslSessionCacheSize;
+    /** SSL session timeout in seconds, or 0 for the provider default */
+    private int _sslSessionTimeout;
+
+    /** Handshake statistics */
+    private final AtomicLong _handshakes = new AtomicLong();
+    private final AtomicLong _handshakesResumed = new AtomicLong();
+    private final AtomicLong _handshakeTime = new AtomicLong();
+    private final AtomicLong _handshakeResumedTime = new AtomicLong();
 
     /** SSL context */
     private SSLContext _context;
@@ -252,9 +265,23 @@ public class SslContextFactory extends AbstractLifeCycle
                 if (LOG.isDebugEnabled())
                     LOG.debug("Enabled Ciphers   {} of {}",Arrays.asList(engine.getEnabledCipherSuites()),Arrays.asList(engine.getSupportedCipherSuites()));
             }
+
+            // Only the client sessions are configured, as a context may be shared with a server
+            configureSessionContext(_context.getClientSessionContext());
         }
     }
 
+    /* ------------------------------------------------------------ */
+    private void configureSessionContext(SSLSessionContext sessionContext)
+    {
+        if (sessionContext==null)
+            return;
+        if (_sslSessionCacheSize>0)
+            sessionContext.setSessionCacheSize(_sslSessionCacheSize);
+        if (_sslSessionTimeout>0)
+            sessionContext.setSessionTimeout(_sslSessionTimeout);
+    }
+
     /* ------------------------------------------------------------ */
     /**
      * @return True if SSL needs client authentication.
@@ -546,6 +573,144 @@ public class SslContextFactory extends AbstractLifeCycle
         return _sessionCachingEnabled;
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * Set if SSL sessions are cached.  Client sessions are cached by the host name and port
+     * passed to {@link #newSslEngine(String, int)}, which is also the SNI server name, so that
+     * a later connection with the same host name and port resumes the session.
+     * @param enableSessionCaching true to cache SSL sessions
+     */
+    public void setSessionCachingEnabled(boolean enableSessionCaching)
+    {
+        _sessionCachingEnabled = enableSessionCaching;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the maximum number of SSL sessions cached by the client session context,
+     * or 0 for the provider default
+     */
+    public int getSslSessionCacheSize()
+    {
+        return _sslSessionCacheSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param sslSessionCacheSize the maximum number of SSL sessions cached by the client
+     * session context, or 0 for the provider default.  Set before starting.
+     * @see SSLSessionContext#setSessionCacheSize(int)
+     */
+    public void setSslSessionCacheSize(int sslSessionCacheSize)
+    {
+        _sslSessionCacheSize = sslSessionCacheSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the time in seconds for which cached client SSL sessions may be resumed, or 0 for the provider default
+     */
+    public int getSslSessionTimeout()
+    {
+        return _sslSessionTimeout;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param sslSessionTimeout the time in seconds for which cached client SSL sessions may be resumed,
+     * or 0 for the provider default.  Set before starting.
+     * @see SSLSessionContext#setSessionTimeout(int)
+     */
+    public void setSslSessionTimeout(int sslSessionTimeout)
+    {
+        _sslSessionTimeout = sslSessionTimeout;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the number of SSL sessions in the client session cache
+     */
+    public int getClientSessionCount()
+    {
+        SSLSessionContext sessionContext = _context==null?null:_context.getClientSessionContext();
+        if (sessionContext==null)
+            return 0;
+        int count=0;
+        for (Enumeration<byte[]> ids=sessionContext.getIds();ids.hasMoreElements();ids.nextElement())
+            count++;
+        return count;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Record the completion of a handshake by a connection using an engine from this factory.
+     * @param resumed true if the handshake resumed a cached session
+     * @param handshakeTime the duration of the handshake in ns
+     */
+    public void handshakeCompleted(boolean resumed, long handshakeTime)
+    {
+        if (resumed)
+        {
+            _handshakesResumed.incrementAndGet();
+            _handshakeResumedTime.addAndGet(handshakeTime);
+        }
+        else
+        {
+            _handshakes.incrementAndGet();
+            _handshakeTime.addAndGet(handshakeTime);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the number of full handshakes recorded by {@link #handshakeCompleted(boolean, long)}
+     */
+    public long getHandshakes()
+    {
+        return _handshakes.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the number of handshakes that resumed a session recorded by {@link #handshakeCompleted(boolean, long)}
+     */
+    public long getHandshakesResumed()
+    {
+        return _handshakesResumed.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the mean time in ns of full handshakes, or 0 if there have been none
+     */
+    public long getHandshakeTimeMean()
+    {
+        long handshakes=_handshakes.get();
+        return handshakes==0?0:_handshakeTime.get()/handshakes;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the mean time in ns of handshakes that resumed a session, or 0 if there have been none
+     */
+    public long getHandshakeResumedTimeMean()
+    {
+        long handshakes=_handshakesResumed.get();
+        return handshakes==0?0:_handshakeResumedTime.get()/handshakes;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Reset the handshake statistics.
+     */
+    public void statsReset()
+    {
+        _handshakes.set(0);
+        _handshakesResumed.set(0);
+        _handshakeTime.set(0);
+        _handshakeResumedTime.set(0);
+    }
+
     /* ------------------------------------------------------------ */
     public SSLEngine newSslEngine(String host,int port)
     {
@@ -0,0 +1,160 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.websocket;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.eclipse.jetty.util.component.Destroyable;
+
+
+/* ------------------------------------------------------------ */
+/** The WebSocket Compression Pool.
+ *
+ * Each zlib {@link Deflater} pins a few hundred KB of native state, so
+ * connections that do not need to keep a compression context between
+ * messages borrow one from this pool for the duration of a single message
+ * instead of holding their own.  Deflaters and Inflaters are raw (nowrap)
+ * as required by permessage-deflate.
+ */
+public class CompressionPool implements Destroyable
+{
+    private final Queue<Deflater> _deflaters = new ConcurrentLinkedQueue<Deflater>();
+    private final Queue<Inflater> _inflaters = new ConcurrentLinkedQueue<Inflater>();
+    private final AtomicInteger _deflaterSize = new AtomicInteger();
+    private final AtomicInteger _inflaterSize = new AtomicInteger();
+    private final int _compressionLevel;
+    private final int _maxSize;
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param compressionLevel the {@link Deflater} compression level (0-9)
+     * @param maxSize the maximum number of idle deflaters and of idle inflaters to keep
+     */
+    public CompressionPool(int compressionLevel, int maxSize)
+    {
+        _compressionLevel=compressionLevel;
+        _maxSize=maxSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    public int getCompressionLevel()
+    {
+        return _compressionLevel;
+    }
+
+    /* ------------------------------------------------------------ */
+    public int getMaxSize()
+    {
+        return _maxSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    public Deflater getDeflater()
+    {
+        Deflater deflater = _deflaters.poll();
+        if (deflater==null)
+            deflater=new Deflater(_compressionLevel,true);
+        else
+            _deflaterSize.decrementAndGet();
+        return deflater;
+    }
+
+    /* ------------------------------------------------------------ */
+    public void returnDeflater(Deflater deflater)
+    {
+        if (_deflaterSize.incrementAndGet() > _maxSize)
+        {
+            _deflaterSize.decrementAndGet();
+            deflater.end();
+        }
+        else
+        {
+            deflater.reset();
+            _deflaters.add(deflater);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    public Inflater getInflater()
+    {
+        Inflater inflater = _inflaters.poll();
+        if (inflater==null)
+            inflater=new Inflater(true);
+        else
+            _inflaterSize.decrementAndGet();
+        return inflater;
+    }
+
+    /* ------------------------------------------------------------ */
+    public void returnInflater(Inflater inflater)
+    {
+        if (_inflaterSize.incrementAndGet() > _maxSize)
+        {
+            _inflaterSize.decrementAndGet();
+            inflater.end();
+        }
+        else
+        {
+            inflater.reset();
+            _inflaters.add(inflater);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * An {@link Extension} that borrows from a pool.  The {@link WebSocketClientFactory}
+     * gives its pool to each such extension it creates.
+     */
+    public interface Aware
+    {
+        void setCompressionPool(CompressionPool pool);
+    }
+
+    /* ------------------------------------------------------------ */
+    public void destroy()
+    {
+        Deflater deflater;
+        while ((deflater=_deflaters.poll())!=null)
+        {
+            _deflaterSize.decrementAndGet();
+            deflater.end();
+        }
+        Inflater inflater;
+        while ((inflater=_inflaters.poll())!=null)
+        {
+            _inflaterSize.decrementAndGet();
+            inflater.end();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    @Override
+    public String toString()
+    {
+        return String.format("%s [%d/%d,%d/%d@%d]",
+                getClass().getSimpleName(),
+                _deflaters.size(),_maxSize,
+                _inflaters.size(),_maxSize,
+                _compressionLevel);
+    }
+}
@@ -0,0 +1,498 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.websocket;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.util.component.Destroyable;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+
+/* ------------------------------------------------------------ */
+/** The WebSocket Host Resolver.
+ *
+ * Resolves host names for {@link WebSocketClient#open(java.net.URI, WebSocket)}
+ * without blocking the caller.  Lookups run on a small executor and their results,
+ * including failures, are cached for a positive and a negative time to live.
+ * Concurrent requests for a host that is being looked up wait for that lookup
+ * rather than starting another, so a reconnect storm to one host costs a single
+ * lookup.  Literal addresses are converted without a lookup.
+ * <p>
+ * The lookup itself may be replaced by overriding {@link #lookup(String)}.
+ */
+public class HostResolver implements Destroyable
+{
+    private static final Logger LOG = Log.getLogger(HostResolver.class);
+    private static final int __PURGE_SIZE = 1024;
+    private static final int __MAX_PENDING = 256;
+
+    /* ------------------------------------------------------------ */
+    /**
+     * The callback for the result of {@link HostResolver#resolve(String, Listener)}.
+     */
+    public interface Listener
+    {
+        /**
+         * @param host The host name
+         * @param addresses The addresses of the host, of which there is at least one
+         */
+        void onResolved(String host, InetAddress[] addresses);
+
+        /**
+         * @param host The host name
+         * @param cause The reason the host could not be resolved
+         */
+        void onResolveFailed(String host, UnknownHostException cause);
+    }
+
+    private final ConcurrentMap<String,Lookup> _cache = new ConcurrentHashMap<String,Lookup>();
+    private volatile Executor _executor;
+    private final boolean _ownExecutor;
+    private volatile long _positiveTtl=60000;
+    private volatile long _negativeTtl=10000;
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Create a resolver with its own executor of at most 4 daemon threads, which is
+     * created by the first lookup.  At most 256 lookups may wait for a thread; further
+     * lookups fail.
+     */
+    public HostResolver()
+    {
+        this(null,true);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param executor The executor that runs lookups
+     */
+    public HostResolver(Executor executor)
+    {
+        this(executor,false);
+    }
+
+    /* ------------------------------------------------------------ */
+    private HostResolver(Executor executor, boolean ownExecutor)
+    {
+        _executor=executor;
+        _ownExecutor=ownExecutor;
+    }
+
+    /* ------------------------------------------------------------ */
+    private Executor getExecutor()
+    {
+        Executor executor=_executor;
+        if (executor==null)
+        {
+            synchronized (this)
+            {
+                executor=_executor;
+                if (executor==null)
+                    _executor=executor=newExecutor(4);
+            }
+        }
+        return executor;
+    }
+
+    /* ------------------------------------------------------------ */
+    private static Executor newExecutor(int threads)
+    {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads,threads,60,TimeUnit.SECONDS,new LinkedBlockingQueue<Runnable>(__MAX_PENDING),new ThreadFactory()
+        {
+            private final AtomicInteger _id = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable,"HostResolver-"+_id.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try
+        {
+            executor.allowCoreThreadTimeOut(true);
+        }
+        catch (NoSuchMethodError e)
+        {
+            // Before Java 6 and Android API 9, idle threads are kept
+            LOG.ignore(e);
+        }
+        return executor;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the time in ms for which resolved addresses are cached
+     */
+    public long getPositiveTtl()
+    {
+        return _positiveTtl;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param positiveTtl the time in ms for which resolved addresses are cached, or 0 to not cache them
+     */
+    public void setPositiveTtl(long positiveTtl)
+    {
+        _positiveTtl=positiveTtl;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the time in ms for which failed lookups are cached
+     */
+    public long getNegativeTtl()
+    {
+        return _negativeTtl;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param negativeTtl the time in ms for which failed lookups are cached, or 0 to not cache them
+     */
+    public void setNegativeTtl(long negativeTtl)
+    {
+        _negativeTtl=negativeTtl;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Resolve a host.  The listener is called by the calling thread if the host is a literal
+     * address or its addresses are cached, otherwise by the thread that completes the lookup.
+     * @param host The host name or literal address
+     * @param listener The listener for the result
+     */
+    public void resolve(String host, Listener listener)
+    {
+        if (isLiteral(host))
+        {
+            try
+            {
+                notifyResolved(listener,host,new InetAddress[]{InetAddress.getByName(host)});
+            }
+            catch(UnknownHostException e)
+            {
+                notifyFailed(listener,host,e);
+            }
+            return;
+        }
+
+        while (true)
+        {
+            Lookup lookup=_cache.get(host);
+            if (lookup==null)
+            {
+                if (_cache.size()>=__PURGE_SIZE)
+                    purge();
+
+                lookup=new Lookup(host,listener);
+                if (_cache.putIfAbsent(host,lookup)==null)
+                {
+                    try
+                    {
+                        getExecutor().execute(lookup);
+                    }
+                    catch(RuntimeException e)
+                    {
+                        // Do not cache a rejected lookup, which says nothing about the host
+                        _cache.remove(host,lookup);
+                        UnknownHostException failure=new UnknownHostException(host);
+                        failure.initCause(e);
+                        lookup.completed(null,failure);
+                    }
+                    return;
+                }
+                continue;
+            }
+
+            // Wait for a lookup in progress, or use its result until it expires
+            if (lookup.join(listener))
+                return;
+            _cache.remove(host,lookup);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Remove a host from the cache, so that the next request looks it up again.
+     * @param host The host name
+     */
+    public void evict(String host)
+    {
+        Lookup lookup=_cache.get(host);
+        if (lookup!=null && lookup.isDone())
+            _cache.remove(host,lookup);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Look up the addresses of a host.  Called by the executor.
+     * @param host The host name
+     * @return The addresses of the host
+     * @throws UnknownHostException if the host cannot be resolved
+     */
+    protected InetAddress[] lookup(String host) throws UnknownHostException
+    {
+        return InetAddress.getAllByName(host);
+    }
+
+    /* ------------------------------------------------------------ */
+    private void purge()
+    {
+        long now=System.currentTimeMillis();
+        for (Iterator<Lookup> i=_cache.values().iterator();i.hasNext();)
+        {
+            if (i.next().isExpired(now))
+                i.remove();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return true if the host is a dotted quad IPv4 address or an IPv6 address, optionally
+     * in brackets, which {@link InetAddress#getByName(String)} converts without a lookup
+     */
+    private static boolean isLiteral(String host)
+    {
+        if (host.indexOf(':')>=0)
+            return isIPv6(host.startsWith("[") && host.endsWith("]")?host.substring(1,host.length()-1):host);
+        return isIPv4(host,0,host.length());
+    }
+
+    /* ------------------------------------------------------------ */
+    private static boolean isIPv4(String host, int start, int end)
+    {
+        int parts=0;
+        int digits=0;
+        int value=0;
+        for (int i=start;i<=end;i++)
+        {
+            char c=i<end?host.charAt(i):'.';
+            if (c=='.')
+            {
+                if (digits==0 || value>255 || ++parts>4)
+                    return false;
+                digits=0;
+                value=0;
+            }
+            else if (c>='0' && c<='9' && ++digits<=3)
+                value=value*10+(c-'0');
+            else
+                return false;
+        }
+        return parts==4;
+    }
+
+    /* ------------------------------------------------------------ */
+    private static boolean isIPv6(String host)
+    {
+        // A scope id after a '%' is not checked
+        int end=host.indexOf('%');
+        if (end<0)
+            end=host.length();
+        int last=host.lastIndexOf(':',end);
+        if (last<0 || host.indexOf(":::")>=0)
+            return false;
+        for (int i=0;i<last;i++)
+        {
+            char c=host.charAt(i);
+            if (c!=':' && !isHex(c))
+                return false;
+        }
+        // The last group may be an embedded IPv4 address
+        int dot=host.indexOf('.',last);
+        if (dot>=0 && dot<end)
+            return isIPv4(host,last+1,end);
+        for (int i=last+1;i<end;i++)
+        {
+            if (!isHex(host.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+
+    /* ------------------------------------------------------------ */
+    private static boolean isHex(char c)
+    {
+        return c>='0' && c<='9' || c>='a' && c<='f' || c>='A' && c<='F';
+    }
+
+    /* ------------------------------------------------------------ */
+    private static void notifyResolved(Listener listener, String host, InetAddress[] addresses)
+    {
+        try
+        {
+            listener.onResolved(host,addresses);
+        }
+        catch(Throwable e)
+        {
+            LOG.warn(e);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    private static void notifyFailed(Listener listener, String host, UnknownHostException cause)
+    {
+        try
+        {
+            listener.onResolveFailed(host,cause);
+        }
+        catch(Throwable e)
+        {
+            LOG.warn(e);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    public void destroy()
+    {
+        _cache.clear();
+        Executor executor=_executor;
+        if (_ownExecutor && executor!=null)
+            ((ExecutorService)executor).shutdown();
+    }
+
+    /* ------------------------------------------------------------ */
+    @Override
+    public String toString()
+    {
+        return String.format("%s@%x cached=%d ttl=%d/%d",
+                getClass().getSimpleName(),
+                hashCode(),
+                _cache.size(),
+                _positiveTtl,
+                _negativeTtl);
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /**
+     * A lookup of a host, which is cached with its result until it expires.
+     */
+    private class Lookup implements Runnable
+    {
+        private final String _host;
+        private List<Listener> _listeners = new ArrayList<Listener>(2);
+        private InetAddress[] _addresses;
+        private UnknownHostException _failure;
+        private long _expires;
+
+        Lookup(String host, Listener listener)
+        {
+            _host=host;
+            _listeners.add(listener);
+        }
+
+        public void run()
+        {
+            try
+            {
+                InetAddress[] addresses=lookup(_host);
+                if (addresses==null || addresses.length==0)
+                    completed(null,new UnknownHostException(_host));
+                else
+                    completed(addresses,null);
+            }
+            catch(UnknownHostException e)
+            {
+                completed(null,e);
+            }
+            catch(RuntimeException e)
+            {
+                UnknownHostException failure=new UnknownHostException(_host);
+                failure.initCause(e);
+                completed(null,failure);
+            }
+        }
+
+        void completed(InetAddress[] addresses, UnknownHostException failure)
+        {
+            List<Listener> listeners;
+            synchronized (this)
+            {
+                _addresses=addresses;
+                _failure=failure;
+                _expires=System.currentTimeMillis()+(failure==null?_positiveTtl:_negativeTtl);
+                listeners=_listeners;
+                _listeners=null;
+            }
+            LOG.debug("resolved {} {}",_host,failure);
+
+            for (Listener listener : listeners)
+            {
+                if (failure==null)
+                    notifyResolved(listener,_host,addresses);
+                else
+                    notifyFailed(listener,_host,failure);
+            }
+        }
+
+        /**
+         * @return true if the listener will be or has been notified by this lookup, false if it has expired
+         */
+        boolean join(Listener listener)
+        {
+            InetAddress[] addresses;
+            UnknownHostException failure;
+            synchronized (this)
+            {
+                if (_listeners!=null)
+                {
+                    _listeners.add(listener);
+                    return true;
+                }
+                if (System.currentTimeMillis()>=_expires)
+                    return false;
+                addresses=_addresses;
+                failure=_failure;
+            }
+
+            if (failure==null)
+                notifyResolved(listener,_host,addresses);
+            else
+                notifyFailed(listener,_host,failure);
+            return true;
+        }
+
+        synchronized boolean isDone()
+        {
+            return _listeners==null;
+        }
+
+        synchronized boolean isExpired(long now)
+        {
+            return _listeners==null && now>=_expires;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jetty.io.Buffer;
+
+
+/* ------------------------------------------------------------ */
+/**
+ * Aggregates the frames of a fragmented binary message in chunks borrowed from
+ * the shared {@link WebSocketBuffers} pool.
+ * <p>
+ * No memory is held between messages: the chunks are borrowed as fragments
+ * arrive and returned by {@link #release()} once the message has been delivered,
+ * either as a contiguous copy or as the list of chunks.
+ */
+class MessageAggregator
+{
+    private final WebSocketBuffers _buffers;
+    private final List<byte[]> _chunks = new ArrayList<byte[]>();
+    private int _length;
+    private int _position;
+
+    /* ------------------------------------------------------------ */
+    MessageAggregator(WebSocketBuffers buffers)
+    {
+        _buffers=buffers;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of bytes aggregated
+     */
+    public int length()
+    {
+        return _length;
+    }
+
+    /* ------------------------------------------------------------ */
+    public void append(Buffer buffer)
+    {
+        int index=buffer.getIndex();
+        int remaining=buffer.length();
+        while (remaining>0)
+        {
+            byte[] chunk;
+            if (_chunks.isEmpty() || _position==(chunk=_chunks.get(_chunks.size()-1)).length)
+            {
+                chunk=_buffers.getChunk();
+                _chunks.add(chunk);
+                _position=0;
+            }
+
+            int n=Math.min(remaining,chunk.length-_position);
+            buffer.peek(index,chunk,_position,n);
+            index+=n;
+            remaining-=n;
+            _position+=n;
+            _length+=n;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return A contiguous copy of the message
+     */
+    public byte[] toArray()
+    {
+        byte[] message=new byte[_length];
+        int offset=0;
+        for (byte[] chunk : _chunks)
+        {
+            int n=Math.min(chunk.length,_length-offset);
+            System.arraycopy(chunk,0,message,offset,n);
+            offset+=n;
+        }
+        return message;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return Read only buffers over the chunks of the message, valid until {@link #release()}
+     */
+    public List<ByteBuffer> toByteBuffers()
+    {
+        List<ByteBuffer> buffers=new ArrayList<ByteBuffer>(_chunks.size());
+        int offset=0;
+        for (byte[] chunk : _chunks)
+        {
+            int n=Math.min(chunk.length,_length-offset);
+            buffers.add(ByteBuffer.wrap(chunk,0,n).asReadOnlyBuffer());
+            offset+=n;
+        }
+        return buffers;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Return the chunks to the pool and clear the message.
+     */
+    public void release()
+    {
+        for (byte[] chunk : _chunks)
+            _buffers.returnChunk(chunk);
+        _chunks.clear();
+        _length=0;
+        _position=0;
+    }
+
+    /* ------------------------------------------------------------ */
+    @Override
+    public String toString()
+    {
+        return String.format("%s@%x length=%d chunks=%d",
+                getClass().getSimpleName(),
+                hashCode(),
+                _length,
+                _chunks.size());
+    }
+}
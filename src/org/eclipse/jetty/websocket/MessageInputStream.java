@@ -0,0 +1,195 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.websocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+import java.util.Queue;
+
+
+/* ------------------------------------------------------------ */
+/**
+ * An InputStream of a single binary message.
+ * <p>
+ * The stream is fed frame by frame by the parsing thread while the application
+ * reads it on another thread.  At most a bounded number of bytes are buffered; once
+ * that is reached the parsing thread waits, so that no more data is read from the
+ * network until the application catches up.
+ * <p>
+ * {@link #available()} may be used to read without blocking.
+ */
+class MessageInputStream extends InputStream
+{
+    private final Queue<byte[]> _chunks = new LinkedList<byte[]>();
+    private final int _maxBuffered;
+    private final long _maxWait;
+    private byte[] _chunk;
+    private int _index;
+    private int _buffered;
+    private boolean _complete;
+    private boolean _closed;
+    private IOException _failure;
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param maxBuffered The number of bytes that may be buffered before {@link #offer(byte[], int, int, boolean)} waits
+     * @param maxWait The maximum time in ms to wait for the reader, or 0 to wait forever
+     */
+    MessageInputStream(int maxBuffered, long maxWait)
+    {
+        _maxBuffered=maxBuffered;
+        _maxWait=maxWait;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Add the payload of a frame.  The bytes are copied.
+     * @throws IOException if the reader did not make space in time
+     */
+    synchronized void offer(byte[] array, int offset, int length, boolean last) throws IOException
+    {
+        long end=_maxWait>0?System.currentTimeMillis()+_maxWait:0;
+        while (!_closed && _buffered>0 && _buffered+length>_maxBuffered)
+        {
+            long wait=end==0?0:end-System.currentTimeMillis();
+            if (end!=0 && wait<=0)
+                throw new IOException("Stream read timeout");
+            try
+            {
+                wait(wait);
+            }
+            catch(InterruptedException e)
+            {
+                throw new InterruptedIOException();
+            }
+        }
+
+        if (_closed)
+            return;
+
+        if (length>0)
+        {
+            byte[] chunk=new byte[length];
+            System.arraycopy(array,offset,chunk,0,length);
+            _chunks.add(chunk);
+            _buffered+=length;
+        }
+        if (last)
+            _complete=true;
+        notifyAll();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Fail the stream, so that readers see the cause once the buffered bytes are consumed
+     */
+    synchronized void fail(IOException cause)
+    {
+        if (!_complete)
+        {
+            _failure=cause;
+            notifyAll();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    @Override
+    public int read() throws IOException
+    {
+        byte[] b=new byte[1];
+        int l=read(b,0,1);
+        return l<0?-1:(0xff&b[0]);
+    }
+
+    /* ------------------------------------------------------------ */
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len==0)
+            return 0;
+        while (true)
+        {
+            if (_closed)
+                throw new IOException("Closed");
+
+            if (_chunk!=null)
+            {
+                int l=Math.min(len,_chunk.length-_index);
+                System.arraycopy(_chunk,_index,b,off,l);
+                _index+=l;
+                if (_index==_chunk.length)
+                    _chunk=null;
+                _buffered-=l;
+                notifyAll();
+                return l;
+            }
+
+            _chunk=_chunks.poll();
+            _index=0;
+            if (_chunk!=null)
+                continue;
+
+            if (_failure!=null)
+                throw _failure;
+            if (_complete)
+                return -1;
+
+            try
+            {
+                wait();
+            }
+            catch(InterruptedException e)
+            {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    @Override
+    public synchronized int available()
+    {
+        return _buffered;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return true if the whole message has been received and read
+     */
+    public synchronized boolean isFinished()
+    {
+        return _complete && _buffered==0;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Close the stream.  Any unread part of the message is discarded.
+     */
+    @Override
+    public synchronized void close()
+    {
+        _closed=true;
+        _chunks.clear();
+        _chunk=null;
+        _buffered=0;
+        notifyAll();
+    }
+}
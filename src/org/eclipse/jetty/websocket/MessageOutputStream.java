@@ -0,0 +1,125 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.websocket;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/* ------------------------------------------------------------ */
+/**
+ * An OutputStream that sends a single message as a sequence of frames.
+ * <p>
+ * Data is buffered up to the fragment size and then sent as a non final frame,
+ * the first with the message opcode and the rest as continuations.  {@link #flush()}
+ * sends any buffered data as a frame and {@link #close()} sends the final frame.
+ * Other messages must not be sent synchronously on the connection until the stream
+ * is closed, as that would interleave their frames.
+ */
+class MessageOutputStream extends OutputStream
+{
+    private final WebSocket.FrameConnection _connection;
+    private final byte _opcode;
+    final byte[] _buffer;
+    int _length;
+    private boolean _started;
+    private boolean _closed;
+
+    /* ------------------------------------------------------------ */
+    MessageOutputStream(WebSocket.FrameConnection connection, byte opcode, int fragmentSize)
+    {
+        _connection=connection;
+        _opcode=opcode;
+        _buffer=new byte[fragmentSize];
+    }
+
+    /* ------------------------------------------------------------ */
+    @Override
+    public synchronized void write(int b) throws IOException
+    {
+        if (_closed)
+            throw new IOException("Closed");
+        if (_length==_buffer.length)
+            sendFrame(false);
+        _buffer[_length++]=(byte)b;
+    }
+
+    /* ------------------------------------------------------------ */
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException
+    {
+        if (_closed)
+            throw new IOException("Closed");
+        while (len>0)
+        {
+            if (_length==_buffer.length)
+                sendFrame(false);
+            int l=Math.min(len,_buffer.length-_length);
+            System.arraycopy(b,off,_buffer,_length,l);
+            _length+=l;
+            off+=l;
+            len-=l;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Send any buffered data as a non final frame.
+     */
+    @Override
+    public synchronized void flush() throws IOException
+    {
+        if (_closed)
+            throw new IOException("Closed");
+        if (_length>0)
+            sendFrame(false);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Send any buffered data as the final frame of the message.
+     */
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if (_closed)
+            return;
+        _closed=true;
+        sendFrame(true);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Send the buffered data as a frame.  Callers must hold the lock of this stream.
+     */
+    void sendFrame(boolean last) throws IOException
+    {
+        byte opcode=_started?WebSocketConnectionRFC6455.OP_CONTINUATION:_opcode;
+        _started=true;
+        int length=_length;
+        _length=0;
+        _connection.sendFrame(last?(byte)WebSocketConnectionRFC6455.FLAG_FIN:0,opcode,_buffer,0,length);
+    }
+
+    /* ------------------------------------------------------------ */
+    boolean isClosed()
+    {
+        return _closed;
+    }
+}
@@ -0,0 +1,188 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.websocket;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.util.LinkedList;
+import java.util.Queue;
+
+
+/* ------------------------------------------------------------ */
+/**
+ * A Reader of a single text message.
+ * <p>
+ * The parsing thread decodes each frame as it arrives and offers the characters
+ * to this reader, which the application reads on another thread.  At most a bounded
+ * number of characters are buffered; once that is reached the parsing thread waits,
+ * so that no more data is read from the network until the application catches up.
+ * <p>
+ * {@link #ready()} may be used to read without blocking.
+ */
+class MessageReader extends Reader
+{
+    private final Queue<String> _chunks = new LinkedList<String>();
+    private final int _maxBuffered;
+    private final long _maxWait;
+    private String _chunk;
+    private int _index;
+    private int _buffered;
+    private boolean _complete;
+    private boolean _closed;
+    private IOException _failure;
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param maxBuffered The number of characters that may be buffered before {@link #offer(String, boolean)} waits
+     * @param maxWait The maximum time in ms to wait for the reader, or 0 to wait forever
+     */
+    MessageReader(int maxBuffered, long maxWait)
+    {
+        _maxBuffered=maxBuffered;
+        _maxWait=maxWait;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Add the decoded characters of a frame.
+     * @throws IOException if the reader did not make space in time
+     */
+    synchronized void offer(String chars, boolean last) throws IOException
+    {
+        int length=chars.length();
+        long end=_maxWait>0?System.currentTimeMillis()+_maxWait:0;
+        while (!_closed && _buffered>0 && _buffered+length>_maxBuffered)
+        {
+            long wait=end==0?0:end-System.currentTimeMillis();
+            if (end!=0 && wait<=0)
+                throw new IOException("Reader timeout");
+            try
+            {
+                wait(wait);
+            }
+            catch(InterruptedException e)
+            {
+                throw new InterruptedIOException();
+            }
+        }
+
+        if (_closed)
+            return;
+
+        if (length>0)
+        {
+            _chunks.add(chars);
+            _buffered+=length;
+        }
+        if (last)
+            _complete=true;
+        notifyAll();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Fail the reader, so that readers see the cause once the buffered characters are consumed
+     */
+    synchronized void fail(IOException cause)
+    {
+        if (!_complete)
+        {
+            _failure=cause;
+            notifyAll();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    @Override
+    public synchronized int read(char[] cbuf, int off, int len) throws IOException
+    {
+        if (len==0)
+            return 0;
+        while (true)
+        {
+            if (_closed)
+                throw new IOException("Closed");
+
+            if (_chunk!=null)
+            {
+                int l=Math.min(len,_chunk.length()-_index);
+                _chunk.getChars(_index,_index+l,cbuf,off);
+                _index+=l;
+                if (_index==_chunk.length())
+                    _chunk=null;
+                _buffered-=l;
+                notifyAll();
+                return l;
+            }
+
+            _chunk=_chunks.poll();
+            _index=0;
+            if (_chunk!=null)
+                continue;
+
+            if (_failure!=null)
+                throw _failure;
+            if (_complete)
+                return -1;
+
+            try
+            {
+                wait();
+            }
+            catch(InterruptedException e)
+            {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return true if a read will not block
+     */
+    @Override
+    public synchronized boolean ready()
+    {
+        return _buffered>0 || _complete || _failure!=null;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return true if the whole message has been received and read
+     */
+    public synchronized boolean isFinished()
+    {
+        return _complete && _buffered==0;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Close the reader.  Any unread part of the message is discarded.
+     */
+    @Override
+    public synchronized void close()
+    {
+        _closed=true;
+        _chunks.clear();
+        _chunk=null;
+        _buffered=0;
+        notifyAll();
+    }
+}
@@ -0,0 +1,168 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.websocket;
+
+import java.io.IOException;
+import java.io.Writer;
+
+
+/* ------------------------------------------------------------ */
+/**
+ * A Writer that sends a single text message as a sequence of frames.
+ * <p>
+ * Characters are encoded to UTF-8 as they are written, directly into the frame
+ * buffer of a {@link MessageOutputStream}, so the message is never held in memory.
+ * A surrogate pair split across writes is encoded once its low surrogate is written;
+ * unpaired surrogates are encoded as '?', as {@link String#getBytes(String)} does.
+ */
+class MessageWriter extends Writer
+{
+    private final MessageOutputStream _out;
+    private char _highSurrogate;
+
+    /* ------------------------------------------------------------ */
+    MessageWriter(WebSocket.FrameConnection connection, int fragmentSize)
+    {
+        _out=new MessageOutputStream(connection,WebSocketConnectionRFC6455.OP_TEXT,Math.max(4,fragmentSize));
+        lock=_out;
+    }
+
+    /* ------------------------------------------------------------ */
+    @Override
+    public void write(int c) throws IOException
+    {
+        synchronized (lock)
+        {
+            if (_out.isClosed())
+                throw new IOException("Closed");
+            encode((char)c);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException
+    {
+        synchronized (lock)
+        {
+            if (_out.isClosed())
+                throw new IOException("Closed");
+            int end=off+len;
+            for (int i=off;i<end;i++)
+                encode(cbuf[i]);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    @Override
+    public void write(String str, int off, int len) throws IOException
+    {
+        synchronized (lock)
+        {
+            if (_out.isClosed())
+                throw new IOException("Closed");
+            int end=off+len;
+            for (int i=off;i<end;i++)
+                encode(str.charAt(i));
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    private void encode(char c) throws IOException
+    {
+        byte[] buffer=_out._buffer;
+        if (buffer.length-_out._length<4)
+            _out.sendFrame(false);
+        int l=_out._length;
+
+        if (_highSurrogate!=0)
+        {
+            char high=_highSurrogate;
+            _highSurrogate=0;
+            if (Character.isLowSurrogate(c))
+            {
+                int code=Character.toCodePoint(high,c);
+                buffer[l++]=(byte)(0xf0|(code>>18));
+                buffer[l++]=(byte)(0x80|((code>>12)&0x3f));
+                buffer[l++]=(byte)(0x80|((code>>6)&0x3f));
+                buffer[l++]=(byte)(0x80|(code&0x3f));
+                _out._length=l;
+                return;
+            }
+            buffer[l++]='?';
+            _out._length=l;
+            if (buffer.length-l<4)
+                _out.sendFrame(false);
+            l=_out._length;
+        }
+
+        if (c<0x80)
+            buffer[l++]=(byte)c;
+        else if (c<0x800)
+        {
+            buffer[l++]=(byte)(0xc0|(c>>6));
+            buffer[l++]=(byte)(0x80|(c&0x3f));
+        }
+        else if (Character.isHighSurrogate(c))
+            _highSurrogate=c;
+        else if (Character.isLowSurrogate(c))
+            buffer[l++]='?';
+        else
+        {
+            buffer[l++]=(byte)(0xe0|(c>>12));
+            buffer[l++]=(byte)(0x80|((c>>6)&0x3f));
+            buffer[l++]=(byte)(0x80|(c&0x3f));
+        }
+        _out._length=l;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Send the characters written so far as a non final frame.
+     * A pending high surrogate is held back until its pair is written.
+     */
+    @Override
+    public void flush() throws IOException
+    {
+        synchronized (lock)
+        {
+            _out.flush();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Send the final frame of the message.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        synchronized (lock)
+        {
+            if (_out.isClosed())
+                return;
+            if (_highSurrogate!=0)
+            {
+                _highSurrogate=0;
+                encode('?');
+            }
+            _out.close();
+        }
+    }
+}
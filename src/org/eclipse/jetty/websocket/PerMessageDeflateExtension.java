@@ -0,0 +1,433 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.websocket;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.util.component.Destroyable;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/* ------------------------------------------------------------ */
+/**
+ * permessage-deflate extension (RFC 7692).
+ * <p>
+ * Data messages are compressed with a raw deflate stream that is sync flushed at the
+ * end of every message, with the trailing 0x00 0x00 0xff 0xff removed.  The first frame
+ * of a compressed message carries RSV1.  Control frames are passed through untouched.
+ * <p>
+ * When a direction has no context takeover negotiated, the {@link Deflater} or {@link Inflater}
+ * for that direction is borrowed from the {@link CompressionPool} for a single message only.
+ * Otherwise it is held until the connection is closed and {@link #destroy()} is called.
+ * <p>
+ * {@link Deflater} does not support a window smaller than 32KB, so a response asking for
+ * a <code>client_max_window_bits</code> below 15 is refused and fails the handshake.
+ * <p>
+ * An inflated message may not exceed the connection's maximum binary message size, or three
+ * bytes per character of its maximum text message size, else the connection is closed with
+ * 1009.  Buffers grown for a message larger than 16KB are
+ * released once it has been passed on.
+ * <p>
+ * Sync flushing needs {@link Deflater#deflate(byte[], int, int, int)}, added in Java 7 and
+ * Android API 19.  On older runtimes {@link #isSupported()} is false and the extension is
+ * neither registered by the {@link WebSocketClientFactory} nor offered in handshakes.
+ */
+public class PerMessageDeflateExtension extends AbstractExtension implements Destroyable, CompressionPool.Aware
+{
+    private static final Logger LOG = Log.getLogger(PerMessageDeflateExtension.class);
+
+    public static final String NAME="permessage-deflate";
+    public static final String CLIENT_NO_CONTEXT_TAKEOVER="client_no_context_takeover";
+    public static final String SERVER_NO_CONTEXT_TAKEOVER="server_no_context_takeover";
+    public static final String CLIENT_MAX_WINDOW_BITS="client_max_window_bits";
+    public static final String SERVER_MAX_WINDOW_BITS="server_max_window_bits";
+
+    private static final byte[] TAIL=new byte[]{0x00,0x00,(byte)0xff,(byte)0xff};
+    private static final int INITIAL_BUFFER_SIZE=256;
+    private static final int RETAINED_BUFFER_SIZE=16*1024;
+    private static final boolean SUPPORTED=hasSyncFlush();
+
+    private CompressionPool _pool;
+    private final Object _inflateLock = new Object();
+    private boolean _deflateNoContextTakeover;
+    private boolean _inflateNoContextTakeover;
+    private Deflater _deflater;
+    private Inflater _inflater;
+    private boolean _deflating;
+    private boolean _inflating;
+    private int _inflateLimit;
+    private byte[] _deflated=new byte[INITIAL_BUFFER_SIZE];
+    private byte[] _inflated=new byte[INITIAL_BUFFER_SIZE];
+
+    /* ------------------------------------------------------------ */
+    public PerMessageDeflateExtension()
+    {
+        this(new CompressionPool(Deflater.DEFAULT_COMPRESSION,0));
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param pool The pool to borrow deflaters and inflaters from
+     */
+    public PerMessageDeflateExtension(CompressionPool pool)
+    {
+        super(NAME);
+        _pool=pool;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param pool The pool to borrow deflaters and inflaters from.  Set before the extension is bound.
+     */
+    public void setCompressionPool(CompressionPool pool)
+    {
+        _pool=pool;
+    }
+
+    /* ------------------------------------------------------------ */
+    private static boolean hasSyncFlush()
+    {
+        try
+        {
+            Deflater.class.getMethod("deflate",byte[].class,int.class,int.class,int.class);
+            return true;
+        }
+        catch(NoSuchMethodException e)
+        {
+            LOG.debug(e);
+            return false;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return true if the runtime's {@link Deflater} can sync flush, as the extension requires
+     */
+    public static boolean isSupported()
+    {
+        return SUPPORTED;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Check the parameters of the server's response.
+     * @return false if the response contains a parameter that cannot be honoured.
+     */
+    @Override
+    public boolean init(Map<String, String> parameters)
+    {
+        if (!SUPPORTED)
+        {
+            LOG.warn("{} needs Java 7 or Android API 19",NAME);
+            return false;
+        }
+        for (Map.Entry<String,String> param : parameters.entrySet())
+        {
+            String name=param.getKey();
+            String value=param.getValue();
+            try
+            {
+                if (CLIENT_NO_CONTEXT_TAKEOVER.equals(name) && value==null)
+                    _deflateNoContextTakeover=true;
+                else if (SERVER_NO_CONTEXT_TAKEOVER.equals(name) && value==null)
+                    _inflateNoContextTakeover=true;
+                else if (CLIENT_MAX_WINDOW_BITS.equals(name))
+                {
+                    if (value!=null && Integer.parseInt(value)!=15)
+                    {
+                        LOG.warn("Unsupported {}={}",name,value);
+                        return false;
+                    }
+                }
+                else if (SERVER_MAX_WINDOW_BITS.equals(name))
+                {
+                    int bits=value==null?-1:Integer.parseInt(value);
+                    if (bits<8 || bits>15)
+                    {
+                        LOG.warn("Bad {}={}",name,value);
+                        return false;
+                    }
+                }
+                else
+                {
+                    LOG.warn("Unknown {} parameter {}={}",NAME,name,value);
+                    return false;
+                }
+            }
+            catch(NumberFormatException e)
+            {
+                LOG.warn("Bad {}={}",name,value);
+                return false;
+            }
+        }
+        return super.init(parameters);
+    }
+
+    /* ------------------------------------------------------------ */
+    @Override
+    public void onFrame(byte flags, byte opcode, Buffer buffer)
+    {
+        if (WebSocketConnectionRFC6455.isControlFrame(opcode))
+        {
+            super.onFrame(flags,opcode,buffer);
+            return;
+        }
+
+        if (opcode!=WebSocketConnectionRFC6455.OP_CONTINUATION)
+        {
+            _inflating=isFlag(flags,1);
+            _inflateLimit=maxMessageSize(opcode);
+        }
+
+        if (!_inflating)
+        {
+            super.onFrame(flags,opcode,buffer);
+            return;
+        }
+
+        boolean last=WebSocketConnectionRFC6455.isLastFrame(flags);
+        byte[] inflated;
+        int length;
+        synchronized (_inflateLock)
+        {
+            try
+            {
+                if (_inflater==null)
+                    _inflater=_pool.getInflater();
+
+                byte[] array=buffer.array();
+                int offset=buffer.getIndex();
+                if (array==null)
+                {
+                    array=buffer.asArray();
+                    offset=0;
+                }
+                length=inflate(array,offset,buffer.length(),0);
+                if (length>=0 && last)
+                    length=inflate(TAIL,0,TAIL.length,length);
+                if (length<0)
+                {
+                    LOG.warn("Inflated message too large > {}B for {}",_inflateLimit,getConnection());
+                    _inflating=false;
+                    _inflated=new byte[INITIAL_BUFFER_SIZE];
+                    close(WebSocketConnectionRFC6455.CLOSE_MESSAGE_TOO_LARGE,"Message size > "+_inflateLimit);
+                    return;
+                }
+                _inflateLimit-=length;
+                if (last)
+                {
+                    _inflating=false;
+                    if (_inflateNoContextTakeover)
+                    {
+                        _pool.returnInflater(_inflater);
+                        _inflater=null;
+                    }
+                }
+                inflated=_inflated;
+            }
+            catch(DataFormatException e)
+            {
+                LOG.debug(e);
+                _inflating=false;
+                close(WebSocketConnectionRFC6455.CLOSE_BAD_PAYLOAD,"Bad deflate data");
+                return;
+            }
+        }
+
+        super.onFrame(clearFlag(flags,1),opcode,new ByteArrayBuffer(inflated,0,length,Buffer.READONLY));
+
+        // Do not keep the buffer of an oversized message for the life of the connection
+        if (last && inflated.length>RETAINED_BUFFER_SIZE)
+        {
+            synchronized (_inflateLock)
+            {
+                if (_inflated==inflated)
+                    _inflated=new byte[INITIAL_BUFFER_SIZE];
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param opcode The opcode of the first frame of a message
+     * @return The maximum inflated size in bytes of the message
+     */
+    private int maxMessageSize(byte opcode)
+    {
+        WebSocket.Connection connection=getConnection();
+        if (connection!=null)
+        {
+            if (opcode==WebSocketConnectionRFC6455.OP_TEXT)
+            {
+                // Each character takes at most 3 UTF-8 bytes
+                int max=connection.getMaxTextMessageSize();
+                if (max>0)
+                    return (int)Math.min(3L*max,Integer.MAX_VALUE-1);
+            }
+            else
+            {
+                int max=connection.getMaxBinaryMessageSize();
+                if (max>0)
+                    return max;
+            }
+        }
+        return Integer.MAX_VALUE-1;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The length of the inflated data in the buffer, or -1 if inflating the input
+     * would exceed the remaining size of the message
+     */
+    private int inflate(byte[] input, int offset, int length, int len) throws DataFormatException
+    {
+        _inflater.setInput(input,offset,length);
+        while (true)
+        {
+            if (len>_inflateLimit)
+                return -1;
+            if (len==_inflated.length)
+                _inflated=Arrays.copyOf(_inflated,(int)Math.min(_inflated.length*2L,_inflateLimit+1L));
+            int n=_inflater.inflate(_inflated,len,_inflated.length-len);
+            len+=n;
+            if (len<_inflated.length && (n==0 || _inflater.needsInput() || _inflater.finished()))
+                return len>_inflateLimit?-1:len;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    @Override
+    public void addFrame(byte flags, byte opcode, byte[] content, int offset, int length) throws IOException
+    {
+        // Control frames are never deflated, so are written without the lock, which a
+        // CLOSE must not hold while the endpoint is shutdown and the connection destroyed.
+        if (WebSocketConnectionRFC6455.isControlFrame(opcode))
+        {
+            super.addFrame(flags,opcode,content,offset,length);
+            return;
+        }
+
+        synchronized (this)
+        {
+            deflateFrame(flags,opcode,content,offset,length);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    private void deflateFrame(byte flags, byte opcode, byte[] content, int offset, int length) throws IOException
+    {
+        if (opcode!=WebSocketConnectionRFC6455.OP_CONTINUATION)
+        {
+            _deflating=true;
+            flags=setFlag(flags,1);
+        }
+        else if (!_deflating)
+        {
+            super.addFrame(flags,opcode,content,offset,length);
+            return;
+        }
+
+        if (_deflater==null)
+            _deflater=_pool.getDeflater();
+
+        boolean last=WebSocketConnectionRFC6455.isLastFrame(flags);
+        int len=deflate(content,offset,length,last);
+        if (last)
+        {
+            _deflating=false;
+            if (_deflateNoContextTakeover)
+            {
+                _pool.returnDeflater(_deflater);
+                _deflater=null;
+            }
+        }
+        super.addFrame(flags,opcode,_deflated,0,len);
+
+        // Do not keep the buffer of an oversized message for the life of the connection
+        if (last && _deflated.length>RETAINED_BUFFER_SIZE)
+            _deflated=new byte[INITIAL_BUFFER_SIZE];
+    }
+
+    /* ------------------------------------------------------------ */
+    private int deflate(byte[] content, int offset, int length, boolean last)
+    {
+        int len=0;
+        _deflater.setInput(content,offset,length);
+        while (!_deflater.needsInput())
+        {
+            if (len==_deflated.length)
+                _deflated=Arrays.copyOf(_deflated,_deflated.length*2);
+            len+=_deflater.deflate(_deflated,len,_deflated.length-len,Deflater.NO_FLUSH);
+        }
+
+        if (last)
+        {
+            while (true)
+            {
+                if (len==_deflated.length)
+                    _deflated=Arrays.copyOf(_deflated,_deflated.length*2);
+                len+=_deflater.deflate(_deflated,len,_deflated.length-len,Deflater.SYNC_FLUSH);
+                if (len<_deflated.length)
+                    break;
+            }
+
+            if (len>=TAIL.length &&
+                _deflated[len-4]==TAIL[0] && _deflated[len-3]==TAIL[1] &&
+                _deflated[len-2]==TAIL[2] && _deflated[len-1]==TAIL[3])
+                len-=TAIL.length;
+
+            // Nothing is flushed for an empty message after a flush, so send the
+            // header of an empty stored block for the receiver's tail to complete
+            if (len==0)
+                _deflated[len++]=0;
+        }
+        return len;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Return any held deflater and inflater to the pool.
+     */
+    public void destroy()
+    {
+        synchronized (this)
+        {
+            if (_deflater!=null)
+            {
+                _pool.returnDeflater(_deflater);
+                _deflater=null;
+            }
+        }
+        synchronized (_inflateLock)
+        {
+            if (_inflater!=null)
+            {
+                _pool.returnInflater(_inflater);
+                _inflater=null;
+            }
+        }
+    }
+}
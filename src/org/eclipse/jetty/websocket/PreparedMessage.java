@@ -0,0 +1,202 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.websocket;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Iterator;
+
+import org.eclipse.jetty.util.StringUtil;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+
+/* ------------------------------------------------------------ */
+/**
+ * A message that is encoded once and sent to many connections.
+ * <p>
+ * The UTF-8 encoding of a text message and the frame header are computed when the
+ * message is created.  Sending it to a connection only generates that connection's
+ * mask and applies it while copying the payload into the connection's buffer.
+ * Connections whose extensions transform the payload (eg permessage-deflate) and
+ * messages too large for a single frame are sent as ordinary messages, still
+ * without encoding the payload again.
+ * <p>
+ * A PreparedMessage is immutable and may be sent concurrently to any number of connections.
+ */
+public class PreparedMessage
+{
+    private static final Logger LOG = Log.getLogger(PreparedMessage.class);
+
+    private final byte _opcode;
+    private final byte[] _payload;
+    private final byte[] _header;
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param text The text message
+     */
+    public PreparedMessage(String text)
+    {
+        this(WebSocketConnectionRFC6455.OP_TEXT,utf8(text));
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param data The binary message, which is copied
+     * @param offset The offset of the message in data
+     * @param length The length of the message
+     */
+    public PreparedMessage(byte[] data, int offset, int length)
+    {
+        this(WebSocketConnectionRFC6455.OP_BINARY,copy(data,offset,length));
+    }
+
+    /* ------------------------------------------------------------ */
+    private static byte[] utf8(String text)
+    {
+        try
+        {
+            return text.getBytes(StringUtil.__UTF8);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    private PreparedMessage(byte opcode, byte[] payload)
+    {
+        _opcode=opcode;
+        _payload=payload;
+
+        int length=payload.length;
+        int h=length<0x7e?2:(length<=0xffff?4:10);
+        byte[] header=new byte[h];
+        header[0]=(byte)(0x80|opcode);
+        if (length<0x7e)
+            header[1]=(byte)length;
+        else if (length<=0xffff)
+        {
+            header[1]=0x7e;
+            header[2]=(byte)(length>>8);
+            header[3]=(byte)length;
+        }
+        else
+        {
+            header[1]=0x7f;
+            header[6]=(byte)(length>>24);
+            header[7]=(byte)(length>>16);
+            header[8]=(byte)(length>>8);
+            header[9]=(byte)length;
+        }
+        _header=header;
+    }
+
+    /* ------------------------------------------------------------ */
+    private static byte[] copy(byte[] data, int offset, int length)
+    {
+        byte[] payload=new byte[length];
+        System.arraycopy(data,offset,payload,0,length);
+        return payload;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return true if this is a text message
+     */
+    public boolean isText()
+    {
+        return _opcode==WebSocketConnectionRFC6455.OP_TEXT;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The length of the encoded payload in bytes
+     */
+    public int getLength()
+    {
+        return _payload.length;
+    }
+
+    /* ------------------------------------------------------------ */
+    byte getOpcode()
+    {
+        return _opcode;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The encoded payload, which must not be modified
+     */
+    byte[] getPayload()
+    {
+        return _payload;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The unmasked frame header, which must not be modified
+     */
+    byte[] getHeader()
+    {
+        return _header;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Send this message to many connections without blocking.
+     * The message is queued on each open connection whose outbound queue is below its
+     * high watermark; other connections are skipped, so a slow connection never
+     * delays the others.
+     * @param connections The connections to send to
+     * @return The number of connections the message was queued to
+     */
+    public int sendTo(Iterable<? extends WebSocket.Connection> connections)
+    {
+        int sent=0;
+        for (Iterator<? extends WebSocket.Connection> i=connections.iterator();i.hasNext();)
+        {
+            WebSocket.Connection connection=i.next();
+            if (!connection.isOpen() || !connection.isWritable())
+                continue;
+            try
+            {
+                connection.sendMessageAsync(this,null);
+                sent++;
+            }
+            catch(RuntimeException e)
+            {
+                LOG.debug(e);
+            }
+        }
+        return sent;
+    }
+
+    /* ------------------------------------------------------------ */
+    @Override
+    public String toString()
+    {
+        return String.format("%s@%x %s length=%d",
+                getClass().getSimpleName(),
+                hashCode(),
+                isText()?"text":"binary",
+                _payload.length);
+    }
+}
@@ -19,6 +19,13 @@
 package org.eclipse.jetty.websocket;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.Future;
 
 /**
  * WebSocket Interface.
@@ -54,6 +61,26 @@ public interface WebSocket
         void onMessage(String data);
     }
 
+    /**
+     * A nested WebSocket interface for receiving text messages as UTF-8 encoded bytes,
+     * eg to pass them to a byte oriented parser without decoding them to a String.
+     * <p>
+     * The bytes are validated as UTF-8, but never decoded.  A message of several frames
+     * is aggregated up to {@link Connection#setMaxTextMessageSize(int)} bytes.
+     * Takes precedence over {@link OnTextMessage}.
+     */
+    interface OnTextBytes extends WebSocket
+    {
+        /**
+         * Called with a complete, valid UTF-8 text message when all fragments have been received.
+         * The array is only valid during the call.
+         * @param data The array holding the UTF-8 encoded message
+         * @param offset The offset of the message in the array
+         * @param length The length of the message in bytes
+         */
+        void onTextMessage(byte[] data, int offset, int length);
+    }
+
     /**
      * A nested WebSocket interface for receiving binary messages
      */
@@ -69,6 +96,78 @@ public interface WebSocket
         void onMessage(byte[] data, int offset, int length);
     }
     
+    /**
+     * A nested WebSocket interface for receiving binary messages as a ByteBuffer.
+     * <p>
+     * A connection to such a WebSocket reads the network into, and parses frames from,
+     * direct buffers, so that a message of a single frame is delivered as a view of that
+     * buffer without the copy of every byte read into a heap buffer.  Other frames
+     * (eg text) are copied to the heap.  A fragmented message is aggregated and delivered
+     * in a heap buffer.  The buffer is only valid during the call.
+     * Takes precedence over {@link OnBinaryMessage}.
+     */
+    interface OnBinaryBuffer extends WebSocket
+    {
+        /**
+         * Called with a complete binary message when all fragments have been received.
+         * @param buffer The message, between the position and limit of the buffer
+         */
+        void onMessage(ByteBuffer buffer);
+    }
+
+    /**
+     * A nested WebSocket interface for receiving binary messages as a list of chunks.
+     * <p>
+     * The frames of a fragmented message are aggregated in fixed size chunks borrowed
+     * from a pool shared by all connections, which are passed as they are rather than
+     * copied into a contiguous array.  The buffers are read only and are only valid during
+     * the call, after which the chunks are returned to the pool.
+     * Takes precedence over {@link OnBinaryMessage}.
+     */
+    interface OnBinaryChunks extends WebSocket
+    {
+        /**
+         * Called with a complete binary message when all fragments have been received.
+         * The maximum size of binary message that may be aggregated from multiple frames is set with {@link Connection#setMaxBinaryMessageSize(int)}.
+         * @param chunks The buffers holding the message, in order
+         */
+        void onMessage(List<ByteBuffer> chunks);
+    }
+
+    /**
+     * A nested WebSocket interface for receiving binary messages as a stream.
+     * <p>
+     * The stream is fed frame by frame as data arrives, so a message need not be
+     * aggregated in memory before it can be processed.  The callback is made from a
+     * thread other than the one parsing the connection and it may block reading the
+     * stream; the connection stops reading from the network while the stream is full.
+     * The stream is closed when the callback returns, discarding any unread data.
+     * Takes precedence over {@link OnBinaryMessage}.
+     */
+    interface OnBinaryStream extends WebSocket
+    {
+        /**
+         * Called when the first frame of a binary message is received.
+         * @param stream The stream of the message, whose {@link InputStream#available()} may be used to avoid blocking
+         */
+        void onMessage(InputStream stream);
+    }
+
+    /**
+     * A nested WebSocket interface for receiving text messages as a stream.
+     * <p>
+     * As {@link OnBinaryStream}, but the frames are decoded and validated as UTF-8
+     * as they arrive.  Takes precedence over {@link OnTextMessage}.
+     */
+    interface OnTextStream extends WebSocket
+    {
+        /**
+         * Called when the first frame of a text message is received.
+         * @param reader The reader of the message, whose {@link Reader#ready()} may be used to avoid blocking
+         */
+        void onMessage(Reader reader);
+    }
+
     /**
      * A nested WebSocket interface for receiving control messages
      */
@@ -104,6 +203,97 @@ public interface WebSocket
         void onHandshake(FrameConnection connection);
     }
     
+    /**
+     * A nested WebSocket interface for receiving the payload of large frames directly into
+     * application buffers.
+     * <p>
+     * When the header of a data frame whose payload does not fit in the connection's buffer
+     * is received, the application may supply a buffer into which the rest of the payload
+     * is then read straight from the network, so that a multi-megabyte frame is copied once
+     * rather than delivered to {@link OnFrame#onFrame(byte, byte, byte[], int, int)} as
+     * fragments to be copied again.  Such a frame is handled only by this interface; it is
+     * not aggregated nor delivered as a message.
+     * <p>
+     * Not used while an extension (eg permessage-deflate) is active, as the payload would
+     * need to be transformed.
+     */
+    interface OnFrameBuffer extends OnFrame
+    {
+        /**
+         * Called when the header of a large data frame has been received.
+         * @param flags The frame flags
+         * @param opcode The frame opcode
+         * @param length The length of the payload
+         * @return A buffer with at least <code>length</code> bytes remaining, or null to receive the frame through {@link OnFrame#onFrame(byte, byte, byte[], int, int)}
+         */
+        ByteBuffer getPayloadBuffer(byte flags, byte opcode, int length);
+
+        /**
+         * Called when the whole payload has been read into the buffer, whose position has been advanced past it.
+         * @param flags The frame flags
+         * @param opcode The frame opcode
+         * @param buffer The buffer returned from {@link #getPayloadBuffer(byte, byte, int)}
+         */
+        void onPayload(byte flags, byte opcode, ByteBuffer buffer);
+    }
+
+    /**
+     * A nested WebSocket interface for receiving outbound backpressure notifications
+     */
+    interface OnWritabilityChanged extends WebSocket
+    {
+        /**
+         * Called when the queue of asynchronously sent messages exceeds the high watermark
+         * (not writable) or drains below the low watermark (writable).
+         * @param writable true if asynchronous sends will be accepted again
+         * @see Connection#setOutboundWatermarks(int, int)
+         */
+        void onWritabilityChanged(boolean writable);
+    }
+
+    /**
+     * A function that extracts a key from a received message, either to route messages from one
+     * connection to several lanes of the inbound executor, where messages with equal keys are
+     * delivered in order on the same lane, or to conflate messages with equal keys.
+     * @see WebSocketClient#setInboundRouter(MessageRouter, int)
+     * @see WebSocketClient#setInboundConflation(MessageRouter)
+     */
+    interface MessageRouter
+    {
+        /**
+         * The key of a message that must not be conflated.
+         */
+        int NO_KEY = Integer.MIN_VALUE;
+
+        /**
+         * Called by the thread parsing the connection, so must be fast and must not block.
+         * The data must not be modified or retained.
+         * @param opcode The opcode of the message
+         * @param data The array containing the payload of the first frame of the message
+         * @param offset The offset of the payload in the array
+         * @param length The length of the payload
+         * @return The key of the message
+         */
+        int route(byte opcode, byte[] data, int offset, int length);
+    }
+
+    /**
+     * A callback for the completion of an asynchronous send.
+     */
+    interface SendCallback
+    {
+        /**
+         * Called when the message has been written to the network.
+         */
+        void onSendComplete();
+
+        /**
+         * Called when the message could not be sent.
+         * @param cause The reason the message was not sent
+         */
+        void onSendFailed(Throwable cause);
+    }
+
     /**
      * A  Connection interface is passed to a WebSocket instance via the {@link WebSocket#onOpen(Connection)} to 
      * give the application access to the specifics of the current connection.   This includes methods 
@@ -115,6 +305,248 @@ public interface WebSocket
         void sendMessage(String data) throws IOException;
         void sendMessage(byte[] data, int offset, int length) throws IOException;
 
+        /**
+         * Send a text message without blocking.
+         * @param data The message
+         * @return A future completed when the message has been written or has failed
+         */
+        Future<Void> sendMessageAsync(String data);
+
+        /**
+         * Send a text message without blocking.
+         * @param data The message
+         * @param callback The callback notified when the message has been written or has failed
+         */
+        void sendMessageAsync(String data, SendCallback callback);
+
+        /**
+         * Send a binary message without blocking.
+         * The data must not be modified until the send has completed.
+         * @param data The array containing the message
+         * @param offset The offset of the message in the array
+         * @param length The length of the message
+         * @return A future completed when the message has been written or has failed
+         */
+        Future<Void> sendMessageAsync(byte[] data, int offset, int length);
+
+        /**
+         * Send a binary message without blocking.
+         * The data must not be modified until the send has completed.
+         * @param data The array containing the message
+         * @param offset The offset of the message in the array
+         * @param length The length of the message
+         * @param callback The callback notified when the message has been written or has failed
+         */
+        void sendMessageAsync(byte[] data, int offset, int length, SendCallback callback);
+
+        /**
+         * Send a message that has been encoded once for many connections.
+         * @param message The prepared message
+         * @see PreparedMessage#sendTo(Iterable)
+         */
+        void sendMessage(PreparedMessage message) throws IOException;
+
+        /**
+         * Send a prepared message without blocking.
+         * @param message The prepared message
+         * @return A future completed when the message has been written or has failed
+         */
+        Future<Void> sendMessageAsync(PreparedMessage message);
+
+        /**
+         * Send a prepared message without blocking.
+         * @param message The prepared message
+         * @param callback The callback notified when the message has been written or has failed, or null
+         */
+        void sendMessageAsync(PreparedMessage message, SendCallback callback);
+
+        /**
+         * Send a text message without blocking, with a priority and a deadline.
+         * @param data The message
+         * @param priority The priority of the message
+         * @param timeoutMs The time within which the message must start to be written, or 0 for no deadline
+         * @param callback The callback notified when the message has been written or has failed, or null
+         * @see #sendMessageAsync(byte[], int, int, int, long, SendCallback)
+         */
+        void sendMessageAsync(String data, int priority, long timeoutMs, SendCallback callback);
+
+        /**
+         * Send a binary message without blocking, with a priority and a deadline.
+         * <p>
+         * Queued messages are written in order of priority, higher first, and then in the order
+         * they were sent.  Messages sent without a priority have priority 0.  A message that has
+         * started to be written is always completed before the next is started.
+         * <p>
+         * If the deadline passes before the first byte of the message is written, the message
+         * is discarded and the callback fails with a {@link java.util.concurrent.TimeoutException}.
+         * If the message would exceed the high watermark of the queue, expired messages are discarded,
+         * then queued messages of lower priority, lowest priority and newest first, if that makes room
+         * for the message.  Their callbacks fail with an {@link IOException}.
+         * The data must not be modified until the send has completed.
+         * @param data The array containing the message
+         * @param offset The offset of the message in the array
+         * @param length The length of the message
+         * @param priority The priority of the message
+         * @param timeoutMs The time within which the message must start to be written, or 0 for no deadline
+         * @param callback The callback notified when the message has been written or has failed, or null
+         * @see #getOutboundExpiredCount()
+         * @see #getOutboundDroppedCount()
+         */
+        void sendMessageAsync(byte[] data, int offset, int length, int priority, long timeoutMs, SendCallback callback);
+
+        /**
+         * Send a prepared message without blocking, with a priority and a deadline.
+         * @param message The prepared message
+         * @param priority The priority of the message
+         * @param timeoutMs The time within which the message must start to be written, or 0 for no deadline
+         * @param callback The callback notified when the message has been written or has failed, or null
+         * @see #sendMessageAsync(byte[], int, int, int, long, SendCallback)
+         */
+        void sendMessageAsync(PreparedMessage message, int priority, long timeoutMs, SendCallback callback);
+
+        /**
+         * Batch small messages into fewer writes.  Frames are accumulated in the connection's
+         * buffer, which is written when it is full, when the delay has passed since the first
+         * frame of the batch was added, or when {@link #flush()} is called.  The delay is
+         * checked as messages are sent and by the connection's millisecond timer, so a burst
+         * of messages may be held for up to a millisecond longer than the delay.
+         * @param delayUs The delay in microseconds, 0 to write a batch as soon as the connection
+         * can, or -1 to disable batching and write every frame as it is sent
+         */
+        void setBatchDelay(long delayUs);
+
+        /**
+         * @return The batch delay in microseconds, or -1 if batching is disabled
+         * @see #setBatchDelay(long)
+         */
+        long getBatchDelay();
+
+        /**
+         * Start a batch of messages, which are not written until the matching {@link #endBatch()},
+         * unless the connection's buffer fills.  Batches may be nested.
+         */
+        void beginBatch();
+
+        /**
+         * End a batch of messages started by {@link #beginBatch()}.  The messages of the
+         * outermost batch are then written without blocking.
+         */
+        void endBatch();
+
+        /**
+         * Write any batched frames without blocking.
+         * @see #setBatchDelay(long)
+         */
+        void flush();
+
+        /**
+         * Set the bounds of the queue of asynchronously sent messages.
+         * Once more than <code>high</code> bytes are queued, asynchronous sends fail until
+         * no more than <code>low</code> bytes are queued.
+         * @param low The low watermark in bytes
+         * @param high The high watermark in bytes
+         * @see OnWritabilityChanged
+         */
+        void setOutboundWatermarks(int low, int high);
+
+        /**
+         * @return The number of bytes of asynchronously sent messages that are queued
+         */
+        long getOutboundQueueSize();
+
+        /**
+         * @return The number of asynchronously sent messages discarded because their deadline passed
+         * before they started to be written
+         * @see #sendMessageAsync(byte[], int, int, int, long, SendCallback)
+         */
+        long getOutboundExpiredCount();
+
+        /**
+         * @return The number of asynchronously sent messages discarded to make room for a message of higher priority
+         * @see #sendMessageAsync(byte[], int, int, int, long, SendCallback)
+         */
+        long getOutboundDroppedCount();
+
+        /**
+         * @return The number of bytes of received messages that are queued for delivery by the inbound executor
+         * @see WebSocketClient#setInboundExecutor(java.util.concurrent.Executor)
+         */
+        long getInboundQueueSize();
+
+        /**
+         * @return The number of received messages that were replaced by a newer message with the same
+         * conflation key before being delivered
+         * @see WebSocketClient#setInboundConflation(MessageRouter)
+         */
+        long getInboundDroppedCount();
+
+        /**
+         * @return The number of received messages that replaced at least one older message with the same
+         * conflation key
+         * @see WebSocketClient#setInboundConflation(MessageRouter)
+         */
+        long getInboundMergedCount();
+
+        /**
+         * @return true if asynchronous sends are accepted, false if the outbound queue is above its high watermark
+         */
+        boolean isWritable();
+
+        /**
+         * Send keepalive PINGs and measure the round trip time from their PONGs.
+         * PINGs are sent on the ticks of the factory's keepalive timer, so the interval is
+         * rounded up to a multiple of {@link WebSocketClientFactory#getKeepAliveTick()}.
+         * @param intervalMs The interval between PINGs, or 0 to disable keepalive
+         * @param maxMissedPongs The number of unanswered PINGs after which the connection is closed, or 0 for no limit
+         */
+        void setKeepAlive(int intervalMs, int maxMissedPongs);
+
+        /**
+         * @return The smoothed round trip time in ns measured by keepalive PINGs, or -1 if not yet measured
+         */
+        long getRoundTripTime();
+
+        /**
+         * @return The minimum round trip time in ns measured by keepalive PINGs, or -1 if not yet measured
+         */
+        long getMinRoundTripTime();
+
+        /**
+         * @return The maximum round trip time in ns measured by keepalive PINGs, or -1 if not yet measured
+         */
+        long getMaxRoundTripTime();
+
+        /**
+         * @return The time in ns taken by the TLS handshake of the connection, or -1 if the
+         * connection is not TLS or has not completed its handshake
+         */
+        long getTlsHandshakeTime();
+
+        /**
+         * A session is taken to be resumed if it was created before the connection.  This is
+         * only reliable for TLS 1.2 and earlier: a TLS 1.3 (PSK) resumption may create a new
+         * session object, in which case it is reported as not resumed.
+         * @return true if the TLS handshake of the connection resumed a cached session rather
+         * than negotiating a new one
+         */
+        boolean isTlsSessionResumed();
+
+        /**
+         * Start sending a binary message as a stream.
+         * Written data is sent as fragments of the message and {@link OutputStream#close()} sends the final fragment,
+         * so the message is never held in memory.  No other message may be sent synchronously until the stream is closed.
+         * @return A stream for a single binary message
+         */
+        OutputStream newOutputStream();
+
+        /**
+         * Start sending a text message as a stream.
+         * Characters are encoded to UTF-8 as they are written and sent as fragments of the message;
+         * {@link Writer#close()} sends the final fragment.  No other message may be sent synchronously until the writer is closed.
+         * @return A writer for a single text message
+         */
+        Writer newWriter();
+
         /** 
          * Close the connection with normal close code.
          */
@@ -18,6 +18,10 @@
 
 package org.eclipse.jetty.websocket;
 
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.eclipse.jetty.io.Buffer;
 import org.eclipse.jetty.io.Buffers;
 import org.eclipse.jetty.io.Buffers.Type;
@@ -31,11 +35,18 @@ import org.eclipse.jetty.io.BuffersFactory;
  * can access directly.   However the generator uses direct buffers
  * for the final output stage as they are filled in bulk and are more
  * efficient to flush.
+ *
+ * Fragmented messages are aggregated in fixed size chunks, which are
+ * shared by all connections so that an idle connection holds none.
  */
 public class WebSocketBuffers
 {
     final private int _bufferSize;
     final private Buffers _buffers;
+    final private Queue<byte[]> _chunks = new ConcurrentLinkedQueue<byte[]>();
+    final private AtomicInteger _pooledChunks = new AtomicInteger();
+    private volatile int _chunkSize=8*1024;
+    private volatile int _maxPooledChunks=256;
 
     public WebSocketBuffers(final int bufferSize)
     {
@@ -62,4 +73,54 @@ public class WebSocketBuffers
     {
         return _bufferSize;
     }
+
+    /**
+     * @return A chunk for message aggregation, of {@link #getChunkSize()} bytes
+     */
+    public byte[] getChunk()
+    {
+        byte[] chunk=_chunks.poll();
+        if (chunk==null)
+            return new byte[_chunkSize];
+        _pooledChunks.decrementAndGet();
+        return chunk;
+    }
+
+    public void returnChunk(byte[] chunk)
+    {
+        if (chunk.length==_chunkSize && _pooledChunks.incrementAndGet()<=_maxPooledChunks)
+            _chunks.add(chunk);
+        else
+            _pooledChunks.decrementAndGet();
+    }
+
+    public int getChunkSize()
+    {
+        return _chunkSize;
+    }
+
+    /**
+     * @param chunkSize The size of the chunks in which fragmented messages are aggregated
+     */
+    public void setChunkSize(int chunkSize)
+    {
+        if (chunkSize<=0)
+            throw new IllegalArgumentException("chunkSize="+chunkSize);
+        _chunkSize=chunkSize;
+        _chunks.clear();
+        _pooledChunks.set(0);
+    }
+
+    public int getMaxPooledChunks()
+    {
+        return _maxPooledChunks;
+    }
+
+    /**
+     * @param maxPooledChunks The maximum number of free chunks kept for reuse
+     */
+    public void setMaxPooledChunks(int maxPooledChunks)
+    {
+        _maxPooledChunks=maxPooledChunks;
+    }
 }
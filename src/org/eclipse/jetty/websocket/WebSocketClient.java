@@ -18,16 +18,18 @@
 
 package org.eclipse.jetty.websocket;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ProtocolException;
 import java.net.SocketAddress;
 import java.net.URI;
-import java.nio.channels.ByteChannel;
-import java.nio.channels.SocketChannel;
+import java.net.UnknownHostException;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
@@ -35,6 +37,7 @@ import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
+import org.eclipse.jetty.io.nio.SelectorManager;
 import org.eclipse.jetty.util.IO;
 import org.eclipse.jetty.util.log.Logger;
 
@@ -87,6 +90,13 @@ public class WebSocketClient
     private int _maxIdleTime=-1;
     private int _maxTextMessageSize=16*1024;
     private int _maxBinaryMessageSize=-1;
+    private int _keepAliveInterval;
+    private int _maxMissedPongs=3;
+    private Executor _inboundExecutor;
+    private int _maxInboundQueued=64*1024;
+    private WebSocket.MessageRouter _inboundRouter;
+    private int _inboundLanes=1;
+    private WebSocket.MessageRouter _inboundConflation;
     private MaskGen _maskGen;
     private SocketAddress _bindAddress;
 
@@ -205,7 +215,11 @@ public class WebSocketClient
 
     /* ------------------------------------------------------------ */
     /**
-     * @return The list of websocket protocol extensions
+     * <p>Returns the list of extensions offered in the Sec-WebSocket-Extensions header
+     * of the handshake request (eg "permessage-deflate; client_max_window_bits").
+     * Only extensions known to {@link WebSocketClientFactory#getExtensionClassesMap()}
+     * may be accepted by the server.</p>
+     * @return The read-write list of websocket protocol extensions
      */
     public List<String> getExtensions()
     {
@@ -272,6 +286,153 @@ public class WebSocketClient
         _maxBinaryMessageSize = maxBinaryMessageSize;
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The initial interval in ms between keepalive PINGs for a connection, or 0 if keepalive is disabled
+     */
+    public int getKeepAliveInterval()
+    {
+        return _keepAliveInterval;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Set the initial keepalive interval for a connection. This can be changed by
+     * the application calling {@link WebSocket.Connection#setKeepAlive(int, int)}.
+     * @param keepAliveInterval The interval in ms between keepalive PINGs, or 0 to disable keepalive
+     */
+    public void setKeepAliveInterval(int keepAliveInterval)
+    {
+        _keepAliveInterval = keepAliveInterval;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The initial number of missed keepalive PONGs after which a connection is closed
+     */
+    public int getMaxMissedPongs()
+    {
+        return _maxMissedPongs;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Set the initial number of missed keepalive PONGs after which a connection is closed.
+     * This can be changed by the application calling {@link WebSocket.Connection#setKeepAlive(int, int)}.
+     * @param maxMissedPongs The number of missed PONGs, or 0 for no limit
+     */
+    public void setMaxMissedPongs(int maxMissedPongs)
+    {
+        _maxMissedPongs = maxMissedPongs;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The executor that delivers received messages, or null if they are delivered by the thread that reads them
+     */
+    public Executor getInboundExecutor()
+    {
+        return _inboundExecutor;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Deliver received messages on an executor, so that a slow websocket does not stop its
+     * connection being read or hold a thread of the factory's thread pool.  The messages of a
+     * connection are queued and delivered in order, by at most one thread at a time.
+     * @param inboundExecutor The executor, or null to deliver messages on the thread that reads them
+     * @see #setMaxInboundQueued(int)
+     */
+    public void setInboundExecutor(Executor inboundExecutor)
+    {
+        _inboundExecutor = inboundExecutor;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of bytes queued for the inbound executor above which a connection stops reading
+     */
+    public int getMaxInboundQueued()
+    {
+        return _maxInboundQueued;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Set the number of bytes of received messages that may be queued for the inbound executor.
+     * Above this, the connection stops reading, so TCP flow control pushes back on the server,
+     * until half of the queued bytes have been delivered.
+     * @param maxInboundQueued The maximum number of queued bytes
+     * @see #setInboundExecutor(Executor)
+     */
+    public void setMaxInboundQueued(int maxInboundQueued)
+    {
+        _maxInboundQueued = maxInboundQueued;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The router that chooses the lane of a received message, or null if messages are delivered on one lane
+     */
+    public WebSocket.MessageRouter getInboundRouter()
+    {
+        return _inboundRouter;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of lanes that messages of a connection are delivered on
+     */
+    public int getInboundLanes()
+    {
+        return _inboundLanes;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Deliver the messages of a connection in parallel on several lanes of the inbound executor.
+     * The router extracts a key from the first frame of each message, and messages with equal
+     * keys are delivered in order on the same lane, so a websocket receiving many independent
+     * streams of messages over one connection is not limited to one thread.  The websocket must
+     * be thread safe.
+     * @param inboundRouter The router, or null to deliver messages in order on one lane
+     * @param inboundLanes The number of lanes
+     * @see #setInboundExecutor(Executor)
+     */
+    public void setInboundRouter(WebSocket.MessageRouter inboundRouter, int inboundLanes)
+    {
+        if (inboundLanes<1)
+            throw new IllegalArgumentException("inboundLanes="+inboundLanes);
+        _inboundRouter = inboundRouter;
+        _inboundLanes = inboundRouter==null?1:inboundLanes;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The function that extracts the conflation key of a received message, or null for no conflation
+     */
+    public WebSocket.MessageRouter getInboundConflation()
+    {
+        return _inboundConflation;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Conflate the messages of a connection that are queued for the inbound executor.
+     * A complete single frame message replaces an undelivered message with the same key and
+     * opcode, keeping its place in the queue, so that a websocket that falls behind only
+     * receives the latest message for each key, and the queue is bounded by the number of
+     * keys rather than by the backlog.
+     * @param inboundConflation The function that extracts the key of a message, which may return
+     * {@link WebSocket.MessageRouter#NO_KEY} for a message that must not be conflated, or null for no conflation
+     * @see #setInboundExecutor(Executor)
+     * @see WebSocket.Connection#getInboundDroppedCount()
+     */
+    public void setInboundConflation(WebSocket.MessageRouter inboundConflation)
+    {
+        _inboundConflation = inboundConflation;
+    }
+
     /* ------------------------------------------------------------ */
     /**
      * <p>Opens a websocket connection to the URI and blocks until the connection is accepted or there is an error.</p>
@@ -309,11 +470,14 @@ public class WebSocketClient
     /**
      * <p>Asynchronously opens a websocket connection and returns a {@link Future} to obtain the connection.</p>
      * <p>The caller must call {@link Future#get(long, TimeUnit)} if they wish to impose a connect timeout on the open.</p>
+     * <p>The host is resolved by the factory's {@link HostResolver}, so this method does not block on a lookup.</p>
      *
      * @param uri The URI to connect to.
      * @param websocket The {@link WebSocket} instance to handle incoming events.
      * @return A {@link Future} to the {@link WebSocket.Connection}
-     * @throws IOException if the connection fails
+     * @throws IOException never thrown: resolution and connection failures, which were
+     * once thrown here, are reported by the returned {@link Future}.  It is still
+     * declared so that existing callers that catch it continue to compile.
      * @see #open(URI, WebSocket, long, TimeUnit)
      */
     public Future<WebSocket.Connection> open(URI uri, WebSocket websocket) throws IOException
@@ -321,43 +485,57 @@ public class WebSocketClient
         if (!_factory.isStarted())
             throw new IllegalStateException("Factory !started");
 
-        InetSocketAddress address = toSocketAddress(uri);
+        final int port = toPort(uri);
+        if (uri.getHost() == null)
+            throw new IllegalArgumentException("Bad WebSocket host: " + uri);
 
-        SocketChannel channel = null;
-        try
+        final WebSocketFuture holder = new WebSocketFuture(websocket,uri,this);
+
+        // Connect once resolved, which is by this thread if the address is cached
+        _factory.getHostResolver().resolve(uri.getHost(),new HostResolver.Listener()
         {
-            channel = SocketChannel.open();
-            if (_bindAddress != null)
-                channel.socket().bind(_bindAddress);
-            channel.socket().setTcpNoDelay(true);
+            public void onResolved(String host, InetAddress[] addresses)
+            {
+                InetSocketAddress[] targets = new InetSocketAddress[addresses.length];
+                for (int i=0;i<addresses.length;i++)
+                    targets[i] = new InetSocketAddress(addresses[i],port);
+                connect(holder,targets);
+            }
 
-            WebSocketFuture holder = new WebSocketFuture(websocket,uri,this,channel);
+            public void onResolveFailed(String host, UnknownHostException cause)
+            {
+                holder.handshakeFailed(cause);
+            }
+        });
 
-            channel.configureBlocking(false);
-            channel.connect(address);
-            _factory.getSelectorManager().register(channel,holder);
+        return holder;
+    }
 
-            return holder;
-        }
-        catch (RuntimeException e)
+    /* ------------------------------------------------------------ */
+    /**
+     * Connect to the addresses of the host, racing them in the selector if there are several.
+     * @see SelectorManager#connect(InetSocketAddress[], Object)
+     */
+    private void connect(WebSocketFuture holder, InetSocketAddress[] addresses)
+    {
+        try
         {
-            // close the channel (prevent connection leak)
-            IO.close(channel);
-            
-            // rethrow
-            throw e;
+            holder.connecting(_factory.getSelectorManager().connect(addresses,holder));
         }
-        catch(IOException e)
+        catch (RuntimeException e)
         {
-            // close the channel (prevent connection leak)
-            IO.close(channel);
-
-            // rethrow
-            throw e;
+            holder.handshakeFailed(e);
         }
     }
 
+    /* ------------------------------------------------------------ */
     public static InetSocketAddress toSocketAddress(URI uri)
+    {
+        return new InetSocketAddress(uri.getHost(), toPort(uri));
+    }
+
+    /* ------------------------------------------------------------ */
+    static int toPort(URI uri)
     {
         String scheme = uri.getScheme();
         if (!("ws".equalsIgnoreCase(scheme) || "wss".equalsIgnoreCase(scheme)))
@@ -367,8 +545,7 @@ public class WebSocketClient
             throw new IllegalArgumentException("Bad WebSocket port: " + port);
         if (port < 0)
             port = "ws".equals(scheme) ? 80 : 443;
-
-        return new InetSocketAddress(uri.getHost(), port);
+        return port;
     }
 
     /* ------------------------------------------------------------ */
@@ -376,20 +553,42 @@ public class WebSocketClient
      */
     static class WebSocketFuture implements Future<WebSocket.Connection>
     {
+        private static final Closeable UNCONNECTED = new Closeable()
+        {
+            public void close()
+            {
+            }
+        };
+
         final WebSocket _websocket;
         final URI _uri;
         final WebSocketClient _client;
         final CountDownLatch _done = new CountDownLatch(1);
-        ByteChannel _channel;
+        Closeable _channel = UNCONNECTED;
         WebSocketConnection _connection;
         Throwable _exception;
 
-        private WebSocketFuture(WebSocket websocket, URI uri, WebSocketClient client, ByteChannel channel)
+        private WebSocketFuture(WebSocket websocket, URI uri, WebSocketClient client)
         {
             _websocket=websocket;
             _uri=uri;
             _client=client;
-            _channel=channel;
+        }
+
+        /**
+         * @param connect The handle of the connection attempts, closed if the future is done
+         */
+        void connecting(Closeable connect)
+        {
+            boolean done;
+            synchronized (this)
+            {
+                done=_channel==null;
+                if (!done)
+                    _channel=connect;
+            }
+            if (done)
+                IO.close(connect);
         }
 
         public void onConnection(WebSocketConnection connection)
@@ -400,6 +599,14 @@ public class WebSocketClient
 
                 connection.getConnection().setMaxTextMessageSize(_client.getMaxTextMessageSize());
                 connection.getConnection().setMaxBinaryMessageSize(_client.getMaxBinaryMessageSize());
+                connection.getConnection().setKeepAlive(_client.getKeepAliveInterval(),_client.getMaxMissedPongs());
+                if (_client.getInboundExecutor()!=null)
+                {
+                    connection.setInboundExecutor(_client.getInboundExecutor(),_client.getMaxInboundQueued());
+                    if (_client.getInboundRouter()!=null && _client.getInboundLanes()>1)
+                        connection.setInboundRouter(_client.getInboundRouter(),_client.getInboundLanes());
+                    connection.setInboundConflation(_client.getInboundConflation());
+                }
 
                 WebSocketConnection con;
                 synchronized (this)
@@ -427,7 +634,7 @@ public class WebSocketClient
         {
             try
             {
-                ByteChannel channel=null;
+                Closeable channel=null;
                 synchronized (this)
                 {
                     if (_channel!=null)
@@ -462,6 +669,11 @@ public class WebSocketClient
             return _client.getProtocol();
         }
 
+        public List<String> getExtensions()
+        {
+            return _client.getExtensions();
+        }
+
         public WebSocket getWebSocket()
         {
             return _websocket;
@@ -487,6 +699,11 @@ public class WebSocketClient
             return _client.getMaskGen();
         }
 
+        public SocketAddress getBindAddress()
+        {
+            return _client.getBindAddress();
+        }
+
         @Override
         public String toString()
         {
@@ -497,7 +714,7 @@ public class WebSocketClient
         {
             try
             {
-                ByteChannel channel=null;
+                Closeable channel=null;
                 synchronized (this)
                 {
                     if (_connection==null && _exception==null && _channel!=null)
@@ -552,7 +769,7 @@ public class WebSocketClient
                 TimeoutException
         {
             _done.await(timeout,unit);
-            ByteChannel channel=null;
+            Closeable channel=null;
             org.eclipse.jetty.websocket.WebSocket.Connection connection=null;
             Throwable exception;
             synchronized (this)
@@ -577,7 +794,7 @@ public class WebSocketClient
             throw new TimeoutException();
         }
 
-        private void closeChannel(ByteChannel channel,int code, String message)
+        private void closeChannel(Closeable channel,int code, String message)
         {
             try
             {
@@ -21,13 +21,27 @@ package org.eclipse.jetty.websocket;
 import java.io.EOFException;
 import java.io.IOException;
 import java.net.ProtocolException;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
 
 import javax.net.ssl.SSLEngine;
 
@@ -47,12 +61,14 @@ import org.eclipse.jetty.io.nio.SelectChannelEndPoint;
 import org.eclipse.jetty.io.nio.SelectorManager;
 import org.eclipse.jetty.io.nio.SslConnection;
 import org.eclipse.jetty.util.B64Code;
+import org.eclipse.jetty.util.IO;
 import org.eclipse.jetty.util.QuotedStringTokenizer;
 import org.eclipse.jetty.util.component.AggregateLifeCycle;
 import org.eclipse.jetty.util.log.Logger;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.eclipse.jetty.util.thread.ThreadPool;
+import org.eclipse.jetty.util.thread.Timeout;
 
 /* ------------------------------------------------------------ */
 /**
@@ -68,12 +84,30 @@ public class WebSocketClientFactory extends AggregateLifeCycle
 {
     private final static Logger __log = org.eclipse.jetty.util.log.Log.getLogger(WebSocketClientFactory.class.getName());
     private final static ByteArrayBuffer __ACCEPT = new ByteArrayBuffer.CaseInsensitive("Sec-WebSocket-Accept");
+    private final static ByteArrayBuffer __EXTENSIONS = new ByteArrayBuffer.CaseInsensitive("Sec-WebSocket-Extensions");
     private final Queue<WebSocketConnection> connections = new ConcurrentLinkedQueue<WebSocketConnection>();
+    private final Map<String,Class<? extends Extension>> _extensionClasses = new ConcurrentHashMap<String, Class<? extends Extension>>();
+    private final ConcurrentMap<SocketChannel,URI> _sslUris = new ConcurrentHashMap<SocketChannel, URI>();
     private final SslContextFactory _sslContextFactory = new SslContextFactory();
+    private final SslConnection.HandshakeListener _handshakeListener = new SslConnection.HandshakeListener()
+    {
+        public void handshakeSucceeded(SslConnection connection)
+        {
+            _sslContextFactory.handshakeCompleted(connection.isResumed(),connection.getHandshakeTime());
+        }
+    };
     private final ThreadPool _threadPool;
     private final WebSocketClientSelector _selector;
     private MaskGen _maskGen;
     private WebSocketBuffers _buffers;
+    private CompressionPool _compressionPool;
+    private HostResolver _hostResolver;
+    private Executor _handshakeExecutor;
+    private final Object _handshakeLock = new Object();
+    private volatile ExecutorService _ownHandshakeExecutor;
+    private int _handshakeThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private final KeepAliveTask _keepAliveTask = new KeepAliveTask();
+    private volatile int _keepAliveTick=1000;
 
     /* ------------------------------------------------------------ */
     /**
@@ -129,10 +163,19 @@ public class WebSocketClientFactory extends AggregateLifeCycle
         _maskGen = maskGen;
         addBean(_maskGen);
 
+        _compressionPool = new CompressionPool(Deflater.DEFAULT_COMPRESSION, 64);
+        addBean(_compressionPool);
+
+        _hostResolver = new HostResolver();
+        addBean(_hostResolver);
+
         _selector = new WebSocketClientSelector();
         addBean(_selector);
 
         addBean(_sslContextFactory);
+
+        if (PerMessageDeflateExtension.isSupported())
+            _extensionClasses.put(PerMessageDeflateExtension.NAME, PerMessageDeflateExtension.class);
     }
 
     /* ------------------------------------------------------------ */
@@ -214,11 +257,271 @@ public class WebSocketClientFactory extends AggregateLifeCycle
         return _buffers.getBufferSize();
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the pool of deflaters and inflaters shared by the compression extensions of this factory
+     */
+    public CompressionPool getCompressionPool()
+    {
+        return _compressionPool;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param compressionPool the pool of deflaters and inflaters shared by the compression extensions of this factory
+     */
+    public void setCompressionPool(CompressionPool compressionPool)
+    {
+        if (isRunning())
+            throw new IllegalStateException(getState());
+        removeBean(_compressionPool);
+        _compressionPool = compressionPool;
+        addBean(_compressionPool);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the resolver of the host names of the URIs opened by the clients of this factory
+     */
+    public HostResolver getHostResolver()
+    {
+        return _hostResolver;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param hostResolver the resolver of the host names of the URIs opened by the clients of this factory
+     */
+    public void setHostResolver(HostResolver hostResolver)
+    {
+        if (isRunning())
+            throw new IllegalStateException(getState());
+        removeBean(_hostResolver);
+        _hostResolver = hostResolver;
+        addBean(_hostResolver);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the executor of the delegated tasks of TLS handshakes, or null if the factory
+     * creates its own executor of {@link #getHandshakeThreads()} threads
+     */
+    public Executor getHandshakeExecutor()
+    {
+        return _handshakeExecutor;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * <p>Sets the executor of the delegated tasks of TLS handshakes.</p>
+     * <p>Certificate validation and key exchange take a lot of CPU, so a mass reconnect
+     * run on the thread pool would hold up the I/O of established connections.  The tasks
+     * are instead run by this executor and the connection resumes its handshake when they
+     * are done.  The number of threads of the executor limits the CPU taken by handshakes.</p>
+     *
+     * @param executor the executor of the delegated tasks of TLS handshakes, or null for
+     * the factory to create its own executor of {@link #getHandshakeThreads()} threads
+     * @see SslConnection#setDelegatedTaskExecutor(Executor)
+     */
+    public void setHandshakeExecutor(Executor executor)
+    {
+        if (isRunning())
+            throw new IllegalStateException(getState());
+        _handshakeExecutor = executor;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the number of threads of the executor created by the factory for the delegated
+     * tasks of TLS handshakes
+     */
+    public int getHandshakeThreads()
+    {
+        return _handshakeThreads;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param handshakeThreads the number of threads of the executor created by the factory for
+     * the delegated tasks of TLS handshakes, or 0 to run the tasks on the thread pool with the
+     * rest of the processing of the connection.  Not used if a handshake executor is set.
+     * @see #setHandshakeExecutor(Executor)
+     */
+    public void setHandshakeThreads(int handshakeThreads)
+    {
+        if (isRunning())
+            throw new IllegalStateException(getState());
+        _handshakeThreads = handshakeThreads;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the executor for the delegated tasks of TLS handshakes, which is created by the
+     * first TLS connection if none is set, or null to run them on the thread pool
+     */
+    private Executor delegatedTaskExecutor()
+    {
+        if (_handshakeExecutor != null || _handshakeThreads <= 0)
+            return _handshakeExecutor;
+        ExecutorService executor = _ownHandshakeExecutor;
+        if (executor == null)
+        {
+            synchronized (_handshakeLock)
+            {
+                executor = _ownHandshakeExecutor;
+                if (executor == null && isRunning())
+                    _ownHandshakeExecutor = executor = newHandshakeExecutor(_handshakeThreads);
+            }
+        }
+        return executor;
+    }
+
+    /* ------------------------------------------------------------ */
+    private static ExecutorService newHandshakeExecutor(int threads)
+    {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+        {
+            private final AtomicInteger _id = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "WebSocketHandshake-" + _id.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try
+        {
+            executor.allowCoreThreadTimeOut(true);
+        }
+        catch (NoSuchMethodError e)
+        {
+            // Before Java 6 and Android API 9, idle threads are kept
+            __log.ignore(e);
+        }
+        return executor;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the period in ms of the timer that sends keepalive PINGs for all connections
+     */
+    public int getKeepAliveTick()
+    {
+        return _keepAliveTick;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Set the period of the keepalive timer.  A single timer task is scheduled at multiples
+     * of the period and sends the PINGs due for all connections, so connections with the
+     * same keepalive interval are batched into the same ticks.
+     * @param keepAliveTick the period in ms of the timer that sends keepalive PINGs for all connections
+     */
+    public void setKeepAliveTick(int keepAliveTick)
+    {
+        if (keepAliveTick<=0)
+            throw new IllegalArgumentException("keepAliveTick "+keepAliveTick);
+        _keepAliveTick = keepAliveTick;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return A modifiable map of extension name to extension class
+     */
+    public Map<String,Class<? extends Extension>> getExtensionClassesMap()
+    {
+        return _extensionClasses;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * <p>Creates the extensions accepted by the server in the handshake response.</p>
+     *
+     * @param accepted the values of the Sec-WebSocket-Extensions response headers
+     * @return the initialized extensions, in the order accepted, or null if an extension is unknown or
+     * its parameters cannot be honoured
+     */
+    protected List<Extension> newExtensions(List<String> accepted)
+    {
+        List<Extension> extensions = new ArrayList<Extension>();
+        for (String value : accepted)
+        {
+            QuotedStringTokenizer tok = new QuotedStringTokenizer(value, ",");
+            while (tok.hasMoreTokens())
+            {
+                QuotedStringTokenizer ext = new QuotedStringTokenizer(tok.nextToken(), ";");
+                String extName = ext.nextToken().trim();
+                Map<String,String> parameters = new LinkedHashMap<String,String>();
+                while (ext.hasMoreTokens())
+                {
+                    QuotedStringTokenizer nv = new QuotedStringTokenizer(ext.nextToken().trim(), "=");
+                    String name = nv.nextToken().trim();
+                    String param = nv.hasMoreTokens() ? nv.nextToken().trim() : null;
+                    parameters.put(name, param);
+                }
+
+                Extension extension = newExtension(extName);
+                if (extension == null || !extension.init(parameters))
+                {
+                    __log.warn("Unsupported extension {}", extName);
+                    return null;
+                }
+                __log.debug("add {} {}", extName, parameters);
+                extensions.add(extension);
+            }
+        }
+        return extensions;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * <p>Creates an extension with the public no argument constructor of its class, and gives it
+     * the factory's {@link CompressionPool} if it is {@link CompressionPool.Aware}.</p>
+     *
+     * @param name the name of the extension
+     * @return the new extension, or null if the name is unknown or the extension cannot be created
+     */
+    protected Extension newExtension(String name)
+    {
+        Class<? extends Extension> extClass = _extensionClasses.get(name);
+        if (extClass == null)
+            return null;
+        try
+        {
+            Extension extension = extClass.getDeclaredConstructor().newInstance();
+            if (extension instanceof CompressionPool.Aware)
+                ((CompressionPool.Aware)extension).setCompressionPool(_compressionPool);
+            return extension;
+        }
+        catch (Exception e)
+        {
+            __log.warn(e);
+            return null;
+        }
+    }
+
+    @Override
+    protected void doStart() throws Exception
+    {
+        super.doStart();
+        _keepAliveTask.schedule();
+    }
+
     @Override
     protected void doStop() throws Exception
     {
+        _keepAliveTask.cancel();
         closeConnections();
         super.doStop();
+        synchronized (_handshakeLock)
+        {
+            if (_ownHandshakeExecutor != null)
+            {
+                _ownHandshakeExecutor.shutdown();
+                _ownHandshakeExecutor = null;
+            }
+        }
     }
 
     /* ------------------------------------------------------------ */
@@ -233,25 +536,70 @@ public class WebSocketClientFactory extends AggregateLifeCycle
         return new WebSocketClient(this);
     }
 
-    protected SSLEngine newSslEngine(SocketChannel channel) throws IOException
+    /* ------------------------------------------------------------ */
+    /**
+     * <p>Creates the engine for a connection to a URI.</p>
+     * <p>The engine is created for the host name and port of the URI rather than the address
+     * connected to, so the host name is sent as the SNI server name and a session cached by
+     * the {@link SslContextFactory} is resumed by later connections to the same host and port,
+     * whichever of the host's addresses they connect to.</p>
+     *
+     * @param uri the URI being connected to, or null
+     * @see #newSslEngine(SocketChannel)
+     * @return a new client mode engine that has begun its handshake
+     * @throws IOException if the handshake cannot begin
+     */
+    protected SSLEngine newSslEngine(URI uri) throws IOException
     {
         SSLEngine sslEngine;
-        if (channel != null)
+        if (uri != null)
         {
-            String peerHost = channel.socket().getInetAddress().getHostAddress();
-            int peerPort = channel.socket().getPort();
-            sslEngine = _sslContextFactory.newSslEngine(peerHost, peerPort);
+            // An IPv6 literal is bracketed in a URI, but not as a peer host or SNI name
+            String host = uri.getHost();
+            if (host.startsWith("[") && host.endsWith("]"))
+                host = host.substring(1, host.length() - 1);
+            sslEngine = _sslContextFactory.newSslEngine(host, WebSocketClient.toPort(uri));
         }
         else
-        {
             sslEngine = _sslContextFactory.newSslEngine();
-        }
         sslEngine.setUseClientMode(true);
         sslEngine.beginHandshake();
 
         return sslEngine;
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * <p>Creates the engine for a connection.  This is called by the factory for every TLS
+     * connection, so it may be overridden to configure the engine.</p>
+     * <p>By default the engine is created by {@link #newSslEngine(URI)} for the URI that the
+     * factory is connecting the channel to, or for the peer address of any other channel.</p>
+     *
+     * @param channel the connected channel, or null
+     * @return a new client mode engine that has begun its handshake
+     * @throws IOException if the handshake cannot begin
+     */
+    protected SSLEngine newSslEngine(SocketChannel channel) throws IOException
+    {
+        if (channel == null)
+            return newSslEngine((URI)null);
+        URI uri = _sslUris.get(channel);
+        if (uri != null)
+            return newSslEngine(uri);
+        String peerHost = channel.socket().getInetAddress().getHostAddress();
+        int peerPort = channel.socket().getPort();
+        try
+        {
+            return newSslEngine(new URI("wss",null,peerHost,peerPort,null,null,null));
+        }
+        catch (URISyntaxException e)
+        {
+            IOException failure = new IOException(e.toString());
+            failure.initCause(e);
+            throw failure;
+        }
+    }
+
     protected boolean addConnection(WebSocketConnection connection)
     {
         return isRunning() && connections.add(connection);
@@ -268,6 +616,44 @@ public class WebSocketClientFactory extends AggregateLifeCycle
             connection.shutdown();
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * The keepalive timer, which expires at multiples of the tick period and is dispatched
+     * to call {@link WebSocketConnectionRFC6455#keepAlive(long)} on every connection.
+     */
+    private class KeepAliveTask extends Timeout.Task implements Runnable
+    {
+        public void run()
+        {
+            try
+            {
+                long now=System.currentTimeMillis();
+                for (WebSocketConnection connection : connections)
+                {
+                    if (connection instanceof WebSocketConnectionRFC6455)
+                        ((WebSocketConnectionRFC6455)connection).keepAlive(now);
+                }
+            }
+            finally
+            {
+                schedule();
+            }
+        }
+
+        void schedule()
+        {
+            if (!isRunning())
+                return;
+            SelectorManager.SelectSet set=_selector.getSelectSet(0);
+            if (set==null)
+                return;
+            // Align to the selector's clock, so that the task expires on the tick.
+            // The selector is only woken if it would otherwise wait past the tick
+            long tick=_keepAliveTick;
+            set.scheduleTimeout(this,tick-set.getNow()%tick);
+        }
+    }
+
     /* ------------------------------------------------------------ */
     /**
      * WebSocket Client Selector Manager
@@ -280,6 +666,25 @@ public class WebSocketClientFactory extends AggregateLifeCycle
             return _threadPool.dispatch(task);
         }
 
+        @Override
+        protected SocketChannel newChannel(Object attachment) throws IOException
+        {
+            WebSocketClient.WebSocketFuture holder = (WebSocketClient.WebSocketFuture)attachment;
+            SocketChannel channel = super.newChannel(attachment);
+            try
+            {
+                if (holder.getBindAddress() != null)
+                    channel.socket().bind(holder.getBindAddress());
+                channel.socket().setTcpNoDelay(true);
+                return channel;
+            }
+            catch (IOException e)
+            {
+                IO.close(channel);
+                throw e;
+            }
+        }
+
         @Override
         protected SelectChannelEndPoint newEndPoint(SocketChannel channel, SelectSet selectSet, final SelectionKey key) throws IOException
         {
@@ -293,8 +698,19 @@ public class WebSocketClientFactory extends AggregateLifeCycle
             // Detect if it is SSL, and wrap the connection if so
             if ("wss".equals(holder.getURI().getScheme()))
             {
-                SSLEngine sslEngine = newSslEngine(channel);
+                SSLEngine sslEngine;
+                _sslUris.put(channel, holder.getURI());
+                try
+                {
+                    sslEngine = newSslEngine(channel);
+                }
+                finally
+                {
+                    _sslUris.remove(channel);
+                }
                 SslConnection sslConnection = new SslConnection(sslEngine, endPoint);
+                sslConnection.setHandshakeListener(_handshakeListener);
+                sslConnection.setDelegatedTaskExecutor(delegatedTaskExecutor());
                 endPoint.setConnection(sslConnection);
                 endPoint = sslConnection.getSslEndPoint();
             }
@@ -357,6 +773,7 @@ public class WebSocketClientFactory extends AggregateLifeCycle
         private final String _key;
         private final HttpParser _parser;
         private String _accept;
+        private final List<String> _extensions = new ArrayList<String>();
         private String _error;
         private ByteArrayBuffer _handshake;
 
@@ -388,6 +805,8 @@ public class WebSocketClientFactory extends AggregateLifeCycle
                 {
                     if (__ACCEPT.equals(name))
                         _accept = value.toString();
+                    else if (__EXTENSIONS.equals(name))
+                        _extensions.add(value.toString());
                 }
 
                 @Override // TODO simone says shouldn't be needed
@@ -438,6 +857,27 @@ public class WebSocketClientFactory extends AggregateLifeCycle
                 if (_future.getProtocol() != null)
                     request.append("Sec-WebSocket-Protocol: ").append(_future.getProtocol()).append("\r\n");
 
+                List<String> extensions = _future.getExtensions();
+                if (extensions != null && extensions.size() > 0)
+                {
+                    // Only offer the extensions that can be created if the server accepts them
+                    int offered = 0;
+                    for (String extension : extensions)
+                    {
+                        int semi = extension.indexOf(';');
+                        String extName = (semi < 0 ? extension : extension.substring(0, semi)).trim();
+                        if (!_extensionClasses.containsKey(extName))
+                        {
+                            __log.debug("Not offering unavailable extension {}", extName);
+                            continue;
+                        }
+                        request.append(offered++ == 0 ? "Sec-WebSocket-Extensions: " : ", ");
+                        request.append(extension);
+                    }
+                    if (offered > 0)
+                        request.append("\r\n");
+                }
+
                 Map<String, String> cookies = _future.getCookies();
                 if (cookies != null && cookies.size() > 0)
                 {
@@ -453,8 +893,6 @@ public class WebSocketClientFactory extends AggregateLifeCycle
 
                 _handshake=new ByteArrayBuffer(request.toString(), false);
             }
-            
-            // TODO extensions
 
             try
             {
@@ -497,7 +935,15 @@ public class WebSocketClientFactory extends AggregateLifeCycle
                 }
                 else
                 {
-                    WebSocketConnection connection = newWebSocketConnection();
+                    List<Extension> extensions = _future._client.getFactory().newExtensions(_extensions);
+                    if (extensions == null)
+                    {
+                        _error = "Bad Sec-WebSocket-Extensions: " + _extensions;
+                        _endp.close();
+                        return this;
+                    }
+
+                    WebSocketConnection connection = newWebSocketConnection(extensions);
 
                     Buffer header = _parser.getHeaderBuffer();
                     if (header.hasContent())
@@ -514,7 +960,7 @@ public class WebSocketClientFactory extends AggregateLifeCycle
             return this;
         }
 
-        private WebSocketConnection newWebSocketConnection() throws IOException
+        private WebSocketConnection newWebSocketConnection(List<Extension> extensions) throws IOException
         {
             __log.debug("newWebSocketConnection()");
             return new WebSocketClientConnection(
@@ -525,7 +971,7 @@ public class WebSocketClientFactory extends AggregateLifeCycle
                     System.currentTimeMillis(),
                     _future.getMaxIdleTime(),
                     _future.getProtocol(),
-                    null,
+                    extensions,
                     WebSocketConnectionRFC6455.VERSION,
                     _future.getMaskGen());
         }
@@ -562,6 +1008,7 @@ public class WebSocketClientFactory extends AggregateLifeCycle
         {
             super(webSocket, endPoint, buffers, timeStamp, maxIdleTime, protocol, extensions, draftVersion, maskGen);
             this.factory = factory;
+            setThreadPool(factory.getThreadPool());
         }
 
         @Override
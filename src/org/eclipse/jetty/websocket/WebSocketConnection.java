@@ -20,6 +20,7 @@ package org.eclipse.jetty.websocket;
 
 
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import org.eclipse.jetty.io.Buffer;
 import org.eclipse.jetty.io.nio.AsyncConnection;
@@ -32,5 +33,11 @@ public interface WebSocketConnection extends AsyncConnection
 
     WebSocket.Connection getConnection();
 
+    void setInboundExecutor(Executor executor, int maxQueued);
+
+    void setInboundRouter(WebSocket.MessageRouter router, int lanes);
+
+    void setInboundConflation(WebSocket.MessageRouter conflation);
+
     void shutdown();
 }
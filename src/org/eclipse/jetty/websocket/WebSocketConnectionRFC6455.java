@@ -19,10 +19,18 @@
 package org.eclipse.jetty.websocket;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.jetty.io.AbstractConnection;
 import org.eclipse.jetty.io.AsyncEndPoint;
@@ -30,16 +38,31 @@ import org.eclipse.jetty.io.Buffer;
 import org.eclipse.jetty.io.ByteArrayBuffer;
 import org.eclipse.jetty.io.Connection;
 import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.io.EofException;
+import org.eclipse.jetty.io.nio.NIOBuffer;
+import org.eclipse.jetty.io.nio.SslConnection;
 import org.eclipse.jetty.util.B64Code;
 import org.eclipse.jetty.util.StringUtil;
 import org.eclipse.jetty.util.Utf8Appendable;
 import org.eclipse.jetty.util.Utf8StringBuilder;
+import org.eclipse.jetty.util.Utf8Validator;
+import org.eclipse.jetty.util.component.Destroyable;
 import org.eclipse.jetty.util.log.Log;
 import org.eclipse.jetty.util.log.Logger;
+import org.eclipse.jetty.util.thread.Timeout;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.eclipse.jetty.websocket.WebSocket.OnBinaryBuffer;
+import org.eclipse.jetty.websocket.WebSocket.OnBinaryChunks;
 import org.eclipse.jetty.websocket.WebSocket.OnBinaryMessage;
+import org.eclipse.jetty.websocket.WebSocket.OnBinaryStream;
 import org.eclipse.jetty.websocket.WebSocket.OnControl;
 import org.eclipse.jetty.websocket.WebSocket.OnFrame;
+import org.eclipse.jetty.websocket.WebSocket.OnFrameBuffer;
+import org.eclipse.jetty.websocket.WebSocket.OnTextBytes;
 import org.eclipse.jetty.websocket.WebSocket.OnTextMessage;
+import org.eclipse.jetty.websocket.WebSocket.OnTextStream;
+import org.eclipse.jetty.websocket.WebSocket.OnWritabilityChanged;
+import org.eclipse.jetty.websocket.WebSocket.SendCallback;
 
 
 /* ------------------------------------------------------------ */
@@ -114,11 +137,25 @@ public class WebSocketConnectionRFC6455 extends AbstractConnection implements We
     private final WebSocketParserRFC6455 _parser;
     private final WebSocketGeneratorRFC6455 _generator;
     private final WebSocketGenerator _outbound;
+    private final WebSocketOutboundQueue _queue;
+    private final WebSocketInboundQueue _inbound;
+    private final WebSocketKeepAlive _keepAlive = new WebSocketKeepAlive();
     private final WebSocket _webSocket;
     private final OnFrame _onFrame;
+    private final OnFrameBuffer _onFrameBuffer;
     private final OnBinaryMessage _onBinaryMessage;
+    private final OnBinaryChunks _onBinaryChunks;
+    private final OnBinaryBuffer _onBinaryBuffer;
     private final OnTextMessage _onTextMessage;
+    private final OnTextBytes _onTextBytes;
+    private final OnBinaryStream _onBinaryStream;
+    private final OnTextStream _onTextStream;
     private final OnControl _onControl;
+    private final WSFrameHandler _frameHandler;
+    private volatile WSFrameHandler[] _frameHandlers;
+    private final WebSocketBuffers _buffers;
+    private final int _maxStreamBuffered;
+    private volatile ThreadPool _threadPool;
     private final String _protocol;
     private final int _draft;
     private final ClassLoader _context;
@@ -127,6 +164,11 @@ public class WebSocketConnectionRFC6455 extends AbstractConnection implements We
     private volatile boolean _closedIn;
     private volatile boolean _closedOut;
     private int _maxTextMessageSize=-1;
+    private final AtomicInteger _batchDepth = new AtomicInteger();
+    private final FlushTask _flushTask = new FlushTask();
+    private volatile long _batchDelay=-1;
+    private volatile long _batchStart;
+    private volatile boolean _flushPending;
     private int _maxBinaryMessageSize=-1;
 
     static
@@ -164,13 +206,25 @@ public class WebSocketConnectionRFC6455 extends AbstractConnection implements We
 
         _webSocket = websocket;
         _onFrame=_webSocket instanceof OnFrame ? (OnFrame)_webSocket : null;
+        _onFrameBuffer=_webSocket instanceof OnFrameBuffer ? (OnFrameBuffer)_webSocket : null;
         _onTextMessage=_webSocket instanceof OnTextMessage ? (OnTextMessage)_webSocket : null;
+        _onTextBytes=_webSocket instanceof OnTextBytes ? (OnTextBytes)_webSocket : null;
         _onBinaryMessage=_webSocket instanceof OnBinaryMessage ? (OnBinaryMessage)_webSocket : null;
+        _onBinaryChunks=_webSocket instanceof OnBinaryChunks ? (OnBinaryChunks)_webSocket : null;
+        _onBinaryBuffer=_webSocket instanceof OnBinaryBuffer ? (OnBinaryBuffer)_webSocket : null;
+        _onTextStream=_webSocket instanceof OnTextStream ? (OnTextStream)_webSocket : null;
+        _onBinaryStream=_webSocket instanceof OnBinaryStream ? (OnBinaryStream)_webSocket : null;
         _onControl=_webSocket instanceof OnControl ? (OnControl)_webSocket : null;
         _generator = new WebSocketGeneratorRFC6455(buffers, _endp,maskgen);
 
         _extensions=extensions;
-        WebSocketParser.FrameHandler frameHandler = new WSFrameHandler();
+        _buffers = buffers;
+        _frameHandler = new WSFrameHandler(buffers);
+        _frameHandlers = new WSFrameHandler[]{_frameHandler};
+
+        // PING and PONG frames may overtake queued messages unless the application receives them
+        _inbound = new WebSocketInboundQueue(_frameHandler,_endp,_onFrame==null && _onControl==null);
+        WebSocketParser.FrameHandler frameHandler = _inbound;
         if (_extensions!=null)
         {
             int e=0;
@@ -189,8 +243,19 @@ public class WebSocketConnectionRFC6455 extends AbstractConnection implements We
 
         _parser = new WebSocketParserRFC6455(buffers, endpoint, inbound,maskgen==null);
 
-        _protocol=protocol;
+        // Receive into direct buffers if binary messages are consumed as ByteBuffers
+        _parser.setDirect(_onBinaryBuffer!=null);
+
+        // Payloads can only be read directly if no extension needs to transform them
+        if (_onFrameBuffer!=null && inbound==frameHandler)
+            _parser.setPayloadHandler(_frameHandler);
+
+        // Drained fragments must fit an empty generator buffer, with room for extension overhead
+        _queue = new WebSocketOutboundQueue(_outbound,_generator,buffers.getBufferSize()/2,
+                _webSocket instanceof OnWritabilityChanged ? (OnWritabilityChanged)_webSocket : null);
 
+        _protocol=protocol;
+        _maxStreamBuffered=4*buffers.getBufferSize();
     }
 
     /* ------------------------------------------------------------ */
@@ -199,6 +264,139 @@ public class WebSocketConnectionRFC6455 extends AbstractConnection implements We
         return _connection;
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * Called on each tick of the keepalive timer to send a PING if one is due,
+     * or to close the connection if too many PONGs have been missed.
+     * @param now The time of the tick in ms
+     */
+    void keepAlive(long now)
+    {
+        if (_closedOut)
+            return;
+
+        switch(_keepAlive.onTick(now,System.nanoTime()))
+        {
+            case WebSocketKeepAlive.PING:
+            {
+                long ping=_keepAlive.getLastPing();
+                byte[] payload=new byte[8];
+                for (int i=0;i<8;i++)
+                    payload[i]=(byte)(ping>>(56-8*i));
+                try
+                {
+                    _connection.sendControl(OP_PING,payload,0,payload.length);
+                }
+                catch(IOException e)
+                {
+                    LOG.debug(e);
+                }
+                break;
+            }
+
+            case WebSocketKeepAlive.DEAD:
+            {
+                LOG.warn("Missed {} pongs for {}",_keepAlive.getMaxMissed(),_endp);
+
+                // Never flush to a dead peer, as this runs on the timer shared by all connections.
+                // The application is told when the closed endpoint closes the connection.
+                synchronized (this)
+                {
+                    _closedOut=true;
+                    if (_closeCode==0)
+                        _closeMessage="Missed "+_keepAlive.getMaxMissed()+" pongs";
+                }
+                try
+                {
+                    _endp.close();
+                }
+                catch(IOException e)
+                {
+                    LOG.ignore(e);
+                }
+                break;
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    public ThreadPool getThreadPool()
+    {
+        return _threadPool;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param threadPool The thread pool used to call {@link OnBinaryStream} and {@link OnTextStream}
+     * handlers, which may block reading while this connection parses further frames.
+     * If not set, a new thread is started for each streamed message.
+     */
+    public void setThreadPool(ThreadPool threadPool)
+    {
+        _threadPool=threadPool;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Deliver messages to the application on an executor rather than on the thread that
+     * parses them.  Messages are queued and delivered in order by at most one thread at a time.
+     * Once more than <code>maxQueued</code> bytes are queued, the connection stops reading from
+     * the network until half of them have been delivered.
+     * This must be called before the first frame is received, normally before the websocket is opened.
+     * @param executor The executor to deliver messages with, or null to deliver them on the parsing thread
+     * @param maxQueued The number of queued bytes above which reading is suspended
+     */
+    public void setInboundExecutor(Executor executor, int maxQueued)
+    {
+        _inbound.setExecutor(executor,maxQueued);
+    }
+
+    /* ------------------------------------------------------------ */
+    public Executor getInboundExecutor()
+    {
+        return _inbound.getExecutor();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Deliver messages in parallel on several lanes of the inbound executor.  Each message is
+     * delivered on the lane chosen by the key that the router extracts from its first frame, so
+     * messages with the same key are delivered in order.  The websocket must be thread safe.
+     * This must be called before the first frame is received and only has effect with an
+     * inbound executor.
+     * @param router The router that extracts the key of a message
+     * @param lanes The number of lanes
+     * @see #setInboundExecutor(Executor, int)
+     */
+    public void setInboundRouter(WebSocket.MessageRouter router, int lanes)
+    {
+        if (router==null || lanes<1)
+            throw new IllegalArgumentException("router="+router+" lanes="+lanes);
+
+        // Each lane aggregates its own messages
+        WSFrameHandler[] handlers=new WSFrameHandler[lanes];
+        handlers[0]=_frameHandler;
+        for (int i=1;i<lanes;i++)
+            handlers[i]=new WSFrameHandler(_buffers);
+        _inbound.setRouter(router,handlers);
+        _frameHandlers=handlers;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Conflate messages queued for the inbound executor.  A complete single frame message replaces
+     * an undelivered message with the same key and opcode, so a slow websocket only receives the
+     * latest message for each key.  Messages for which the function returns
+     * {@link WebSocket.MessageRouter#NO_KEY} are never conflated.
+     * This only has effect with an inbound executor.
+     * @param conflation The function that extracts the conflation key of a message, or null for no conflation
+     * @see #setInboundExecutor(Executor, int)
+     */
+    public void setInboundConflation(WebSocket.MessageRouter conflation)
+    {
+        _inbound.setConflation(conflation);
+    }
+
     /* ------------------------------------------------------------ */
     public List<Extension> getExtensions()
     {
@@ -221,10 +419,14 @@ public class WebSocketConnectionRFC6455 extends AbstractConnection implements We
 
             while (progress)
             {
-                int flushed=_generator.flushBuffer();
-                int filled=_parser.parseNext();
-
-                progress = flushed>0 || filled>0;
+                int flushed=isHolding()?0:_generator.flushBuffer();
+                int drained=_queue.drain();
+                if (drained>0)
+                    batched();
+                // Stop parsing while too many messages are queued for the application
+                int filled=_inbound.isSuspended()?0:_parser.parseNext();
+
+                progress = flushed>0 || drained>0 || filled>0;
                 _endp.flush();
 
                 if (_endp instanceof AsyncEndPoint && ((AsyncEndPoint)_endp).hasProgressed())
@@ -251,12 +453,12 @@ public class WebSocketConnectionRFC6455 extends AbstractConnection implements We
             _generator.returnBuffer();
             if (_endp.isOpen())
             {
-                if (_closedIn && _closedOut && _outbound.isBufferEmpty())
+                if (_closedIn && _closedOut && _outbound.isBufferEmpty() && _queue.isEmpty())
                     _endp.close();
                 else if (_endp.isInputShutdown() && !_closedIn)
                     closeIn(CLOSE_NO_CLOSE,null);
-                else
-                    checkWriteable();
+                else if (needsWrite() && _endp instanceof AsyncEndPoint)
+                    ((AsyncEndPoint)_endp).scheduleWrite();
             }
         }
         return this;
@@ -285,7 +487,7 @@ public class WebSocketConnectionRFC6455 extends AbstractConnection implements We
     /* ------------------------------------------------------------ */
     public boolean isSuspended()
     {
-        return false;
+        return _inbound.isSuspended();
     }
 
     /* ------------------------------------------------------------ */
@@ -298,8 +500,36 @@ public class WebSocketConnectionRFC6455 extends AbstractConnection implements We
             if (closed)
                 _closeCode=WebSocketConnectionRFC6455.CLOSE_NO_CLOSE;
         }
-        if (closed)
-            _webSocket.onClose(WebSocketConnectionRFC6455.CLOSE_NO_CLOSE,"closed");
+        try
+        {
+            // Tell the application after any messages still queued for it
+            _inbound.execute(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        if (closed)
+                            _webSocket.onClose(WebSocketConnectionRFC6455.CLOSE_NO_CLOSE,_closeMessage==null?"closed":_closeMessage);
+                    }
+                    finally
+                    {
+                        for (WSFrameHandler handler : _frameHandlers)
+                            handler.failStreams(new EofException("Closed"));
+                    }
+                }
+            });
+        }
+        finally
+        {
+            _queue.failAll(new EofException("Closed"));
+
+            // Release any resources (eg zlib state) held by the extensions
+            if (_extensions!=null)
+                for (Extension extension : _extensions)
+                    if (extension instanceof Destroyable)
+                        ((Destroyable)extension).destroy();
+        }
     }
 
     /* ------------------------------------------------------------ */
@@ -379,8 +609,9 @@ public class WebSocketConnectionRFC6455 extends AbstractConnection implements We
                     byte[] bytes = ("xx"+(message==null?"":message)).getBytes(StringUtil.__ISO_8859_1);
                     bytes[0]=(byte)(code/0x100);
                     bytes[1]=(byte)(code%0x100);
-                    _outbound.addFrame((byte)FLAG_FIN,WebSocketConnectionRFC6455.OP_CLOSE,bytes,0,code>0?bytes.length:0);
+                    _queue.sendControl(WebSocketConnectionRFC6455.OP_CLOSE,bytes,0,code>0?bytes.length:0);
                     _outbound.flush();
+                    checkWriteable();
                 }
             }
             catch(IOException e)
@@ -404,12 +635,115 @@ public class WebSocketConnectionRFC6455 extends AbstractConnection implements We
     }
 
     /* ------------------------------------------------------------ */
+    /**
+     * Called after output has been added by a sending thread.  The write is left to the
+     * selector's flush pass, which handles all connections with output added since its
+     * last pass, so concurrent senders do not each wake the selector.
+     */
     private void checkWriteable()
     {
-        if (!_outbound.isBufferEmpty() && _endp instanceof AsyncEndPoint)
+        if (needsWrite() && _endp instanceof AsyncEndPoint)
+            ((AsyncEndPoint)_endp).scheduleFlush();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return true if there is output that has not been written
+     */
+    private boolean needsWrite()
+    {
+        // A batch that is held is only written once it is flushed
+        boolean write=isHolding()?!_queue.isDrained():(!_outbound.isBufferEmpty() || !_queue.isEmpty());
+        if (!write && _flushPending && _outbound.isBufferEmpty())
+            _flushPending=false;
+        return write;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return true if written frames are being held in the generator buffer as a batch
+     */
+    private boolean isHolding()
+    {
+        return !_flushPending && (_batchDepth.get()>0 || _batchDelay>=0);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the TLS connection the endpoint belongs to, or null if the connection is not TLS
+     */
+    private SslConnection getSslConnection()
+    {
+        return _endp instanceof SslConnection.SslEndPoint?((SslConnection.SslEndPoint)_endp).getSslConnection():null;
+    }
+
+    /* ------------------------------------------------------------ */
+    private void updateBatching()
+    {
+        boolean batching=_batchDepth.get()>0 || _batchDelay>=0;
+        _generator.setBatching(batching);
+        _queue.setBatching(batching);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Called after frames have been added to the generator, to flush a batch that has been
+     * held for the batch delay.  The delay is checked as frames are added, so that a busy
+     * connection flushes on time, and by a timer for the last frames of a burst.
+     */
+    private void batched()
+    {
+        long delay=_batchDelay;
+        if (delay<0 || _batchDepth.get()>0 || _flushPending || _outbound.isBufferEmpty())
+            return;
+
+        // Without a delay, the batch is written by the selector's next flush pass,
+        // so frames sent before then are written with it
+        if (delay==0 && _endp instanceof AsyncEndPoint)
+        {
+            _flushPending=true;
+            checkWriteable();
+            return;
+        }
+
+        long now=System.nanoTime();
+        long start=_batchStart;
+        if (start==0)
         {
-            ((AsyncEndPoint)_endp).scheduleWrite();
+            _batchStart=now;
+            if (delay>0 && _endp instanceof AsyncEndPoint)
+            {
+                // The timer has ms resolution, so expires at or after the delay
+                ((AsyncEndPoint)_endp).scheduleTimeout(_flushTask,(delay+999999)/1000000);
+                return;
+            }
         }
+        else if (now-start<delay)
+            return;
+
+        flushBatch();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Flush any batched frames without blocking, leaving the handle loop to write
+     * what cannot be written now.
+     */
+    private void flushBatch()
+    {
+        _batchStart=0;
+        _flushPending=true;
+        if (_endp instanceof AsyncEndPoint)
+            ((AsyncEndPoint)_endp).cancelTimeout(_flushTask);
+        try
+        {
+            _generator.flushBuffer();
+        }
+        catch(IOException e)
+        {
+            LOG.debug(e);
+        }
+        checkWriteable();
     }
 
     protected void onFrameHandshake()
@@ -436,7 +770,8 @@ public class WebSocketConnectionRFC6455 extends AbstractConnection implements We
             if (_closedOut)
                 throw new IOException("closedOut "+_closeCode+":"+_closeMessage);
             byte[] data = content.getBytes(StringUtil.__UTF8);
-            _outbound.addFrame((byte)FLAG_FIN,WebSocketConnectionRFC6455.OP_TEXT,data,0,data.length);
+            _queue.sendMessage(WebSocketConnectionRFC6455.OP_TEXT,data,0,data.length);
+            batched();
             checkWriteable();
         }
 
@@ -445,16 +780,279 @@ public class WebSocketConnectionRFC6455 extends AbstractConnection implements We
         {
             if (_closedOut)
                 throw new IOException("closedOut "+_closeCode+":"+_closeMessage);
-            _outbound.addFrame((byte)FLAG_FIN,WebSocketConnectionRFC6455.OP_BINARY,content,offset,length);
+            _queue.sendMessage(WebSocketConnectionRFC6455.OP_BINARY,content,offset,length);
+            batched();
+            checkWriteable();
+        }
+
+        /* ------------------------------------------------------------ */
+        public void sendMessage(PreparedMessage message) throws IOException
+        {
+            if (_closedOut)
+                throw new IOException("closedOut "+_closeCode+":"+_closeMessage);
+            _queue.sendMessage(message);
+            batched();
             checkWriteable();
         }
 
+        /* ------------------------------------------------------------ */
+        public Future<Void> sendMessageAsync(String content)
+        {
+            WebSocketOutboundQueue.FutureSendCallback future = new WebSocketOutboundQueue.FutureSendCallback();
+            sendMessageAsync(content,future);
+            return future;
+        }
+
+        /* ------------------------------------------------------------ */
+        public void sendMessageAsync(String content, SendCallback callback)
+        {
+            sendMessageAsync(content,0,0,callback);
+        }
+
+        /* ------------------------------------------------------------ */
+        public void sendMessageAsync(String content, int priority, long timeoutMs, SendCallback callback)
+        {
+            byte[] data;
+            try
+            {
+                data = content.getBytes(StringUtil.__UTF8);
+            }
+            catch (UnsupportedEncodingException e)
+            {
+                throw new RuntimeException(e);
+            }
+            sendMessageAsync(WebSocketConnectionRFC6455.OP_TEXT,data,0,data.length,priority,timeoutMs,callback);
+        }
+
+        /* ------------------------------------------------------------ */
+        public Future<Void> sendMessageAsync(byte[] content, int offset, int length)
+        {
+            WebSocketOutboundQueue.FutureSendCallback future = new WebSocketOutboundQueue.FutureSendCallback();
+            sendMessageAsync(content,offset,length,future);
+            return future;
+        }
+
+        /* ------------------------------------------------------------ */
+        public void sendMessageAsync(byte[] content, int offset, int length, SendCallback callback)
+        {
+            sendMessageAsync(WebSocketConnectionRFC6455.OP_BINARY,content,offset,length,0,0,callback);
+        }
+
+        /* ------------------------------------------------------------ */
+        public void sendMessageAsync(byte[] content, int offset, int length, int priority, long timeoutMs, SendCallback callback)
+        {
+            sendMessageAsync(WebSocketConnectionRFC6455.OP_BINARY,content,offset,length,priority,timeoutMs,callback);
+        }
+
+        /* ------------------------------------------------------------ */
+        public Future<Void> sendMessageAsync(PreparedMessage message)
+        {
+            WebSocketOutboundQueue.FutureSendCallback future = new WebSocketOutboundQueue.FutureSendCallback();
+            sendMessageAsync(message,future);
+            return future;
+        }
+
+        /* ------------------------------------------------------------ */
+        public void sendMessageAsync(PreparedMessage message, SendCallback callback)
+        {
+            sendMessageAsync(message,0,0,callback);
+        }
+
+        /* ------------------------------------------------------------ */
+        public void sendMessageAsync(PreparedMessage message, int priority, long timeoutMs, SendCallback callback)
+        {
+            if (_closedOut)
+            {
+                if (callback!=null)
+                    callback.onSendFailed(new IOException("closedOut "+_closeCode+":"+_closeMessage));
+                return;
+            }
+            if (_queue.enqueue(message,priority,timeoutMs,callback))
+                scheduleDrain();
+        }
+
+        /* ------------------------------------------------------------ */
+        private void sendMessageAsync(byte opcode, byte[] content, int offset, int length, int priority, long timeoutMs, SendCallback callback)
+        {
+            if (_closedOut)
+            {
+                if (callback!=null)
+                    callback.onSendFailed(new IOException("closedOut "+_closeCode+":"+_closeMessage));
+                return;
+            }
+            if (_queue.enqueue(opcode,content,offset,length,priority,timeoutMs,callback))
+                scheduleDrain();
+        }
+
+        /* ------------------------------------------------------------ */
+        private void scheduleDrain()
+        {
+            // Let the selector's flush pass dispatch the handle loop to drain the queue
+            if (_endp instanceof AsyncEndPoint)
+                ((AsyncEndPoint)_endp).scheduleFlush();
+            else
+            {
+                try
+                {
+                    _queue.flush();
+                }
+                catch(IOException e)
+                {
+                    LOG.debug(e);
+                }
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        public void setBatchDelay(long delayUs)
+        {
+            _batchDelay=delayUs<0?-1:delayUs*1000;
+            updateBatching();
+            if (delayUs<0)
+                flushBatch();
+        }
+
+        /* ------------------------------------------------------------ */
+        public long getBatchDelay()
+        {
+            long delay=_batchDelay;
+            return delay<0?-1:delay/1000;
+        }
+
+        /* ------------------------------------------------------------ */
+        public void beginBatch()
+        {
+            if (_batchDepth.getAndIncrement()==0)
+                updateBatching();
+        }
+
+        /* ------------------------------------------------------------ */
+        public void endBatch()
+        {
+            int depth=_batchDepth.decrementAndGet();
+            if (depth<0)
+            {
+                _batchDepth.incrementAndGet();
+                throw new IllegalStateException("!batch");
+            }
+            if (depth==0)
+            {
+                updateBatching();
+                flushBatch();
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        public void flush()
+        {
+            flushBatch();
+        }
+
+        /* ------------------------------------------------------------ */
+        public void setOutboundWatermarks(int low, int high)
+        {
+            _queue.setWatermarks(low,high);
+        }
+
+        /* ------------------------------------------------------------ */
+        public long getOutboundQueueSize()
+        {
+            return _queue.getQueuedBytes();
+        }
+
+        /* ------------------------------------------------------------ */
+        public long getOutboundExpiredCount()
+        {
+            return _queue.getExpiredCount();
+        }
+
+        /* ------------------------------------------------------------ */
+        public long getOutboundDroppedCount()
+        {
+            return _queue.getDroppedCount();
+        }
+
+        /* ------------------------------------------------------------ */
+        public long getInboundQueueSize()
+        {
+            return _inbound.getQueueSize();
+        }
+
+        /* ------------------------------------------------------------ */
+        public long getInboundDroppedCount()
+        {
+            return _inbound.getDroppedCount();
+        }
+
+        /* ------------------------------------------------------------ */
+        public long getInboundMergedCount()
+        {
+            return _inbound.getMergedCount();
+        }
+
+        /* ------------------------------------------------------------ */
+        public boolean isWritable()
+        {
+            return _queue.isWritable();
+        }
+
+        /* ------------------------------------------------------------ */
+        public void setKeepAlive(int intervalMs, int maxMissedPongs)
+        {
+            _keepAlive.configure(intervalMs,maxMissedPongs);
+        }
+
+        /* ------------------------------------------------------------ */
+        public long getRoundTripTime()
+        {
+            return _keepAlive.getRoundTripTime();
+        }
+
+        /* ------------------------------------------------------------ */
+        public long getMinRoundTripTime()
+        {
+            return _keepAlive.getMinRoundTripTime();
+        }
+
+        /* ------------------------------------------------------------ */
+        public long getMaxRoundTripTime()
+        {
+            return _keepAlive.getMaxRoundTripTime();
+        }
+
+        /* ------------------------------------------------------------ */
+        public long getTlsHandshakeTime()
+        {
+            SslConnection ssl=getSslConnection();
+            return ssl==null?-1:ssl.getHandshakeTime();
+        }
+
+        /* ------------------------------------------------------------ */
+        public boolean isTlsSessionResumed()
+        {
+            SslConnection ssl=getSslConnection();
+            return ssl!=null && ssl.isResumed();
+        }
+
+        /* ------------------------------------------------------------ */
+        public OutputStream newOutputStream()
+        {
+            return new MessageOutputStream(this,WebSocketConnectionRFC6455.OP_BINARY,_queue.getFragmentSize());
+        }
+
+        /* ------------------------------------------------------------ */
+        public Writer newWriter()
+        {
+            return new MessageWriter(this,_queue.getFragmentSize());
+        }
+
         /* ------------------------------------------------------------ */
         public void sendFrame(byte flags,byte opcode, byte[] content, int offset, int length) throws IOException
         {
             if (_closedOut)
                 throw new IOException("closedOut "+_closeCode+":"+_closeMessage);
-            _outbound.addFrame(flags,opcode,content,offset,length);
+            _queue.send(flags,opcode,content,offset,length);
+            batched();
             checkWriteable();
         }
 
@@ -464,7 +1062,8 @@ public class WebSocketConnectionRFC6455 extends AbstractConnection implements We
             // TODO: section 5.5 states that control frames MUST never be length > 125 bytes and MUST NOT be fragmented
             if (_closedOut)
                 throw new IOException("closedOut "+_closeCode+":"+_closeMessage);
-            _outbound.addFrame((byte)FLAG_FIN,ctrl,data,offset,length);
+            _queue.sendControl(ctrl,data,offset,length);
+            batched();
             checkWriteable();
         }
 
@@ -645,14 +1244,44 @@ public class WebSocketConnectionRFC6455 extends AbstractConnection implements We
     /* ------------------------------------------------------------ */
     /* ------------------------------------------------------------ */
     /* ------------------------------------------------------------ */
-    private class WSFrameHandler implements WebSocketParser.FrameHandler
+    /**
+     * Flushes a batch once the batch delay has expired.  Run by the selector's timer,
+     * which dispatches it as a {@link Runnable}.
+     */
+    private class FlushTask extends Timeout.Task implements Runnable
+    {
+        public void run()
+        {
+            if (_batchStart!=0)
+                flushBatch();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    private class WSFrameHandler implements WebSocketParser.FrameHandler, WebSocketParser.PayloadHandler
     {
         private static final int MAX_CONTROL_FRAME_PAYLOAD = 125;
+        private static final int MAX_RETAINED_TEXT_BYTES = 16*1024;
         private final Utf8StringBuilder _utf8 = new Utf8StringBuilder(512); // TODO configure initial capacity
-        private ByteArrayBuffer _aggregate;
+        private final Utf8StringBuilder _streamUtf8 = new Utf8StringBuilder(512);
+        private final Utf8Validator _utf8Validator = new Utf8Validator();
+        private byte[] _textBytes;
+        private int _textLength;
+        private final MessageAggregator _aggregate;
+        private ByteArrayBuffer _heap;
+        private Buffer _viewed;
+        private ByteBuffer _view;
         private byte _opcode=-1;
+        private volatile MessageInputStream _inputStream;
+        private volatile MessageReader _reader;
+
+        WSFrameHandler(WebSocketBuffers buffers)
+        {
+            _aggregate = new MessageAggregator(buffers);
+        }
 
-        public void onFrame(final byte flags, final byte opcode, final Buffer buffer)
+        public void onFrame(final byte flags, final byte opcode, Buffer buffer)
         {
             boolean lastFrame = isLastFrame(flags);
 
@@ -685,6 +1314,24 @@ public class WebSocketConnectionRFC6455 extends AbstractConnection implements We
                     return;
                 }
 
+                // A frame in direct memory is copied to the heap, unless it is part of a
+                // binary message that is only consumed as a ByteBuffer
+                if (array==null && !(_onBinaryBuffer!=null && _onFrame==null && _onBinaryStream==null && _onBinaryChunks==null &&
+                    (opcode==OP_BINARY || opcode==OP_CONTINUATION && _opcode==OP_BINARY)))
+                {
+                    buffer=toHeapBuffer(buffer);
+                    array=buffer.array();
+                }
+
+                // Match keepalive PONGs, which are still delivered to the application
+                if (opcode==OP_PONG && buffer.length()==8)
+                {
+                    long ping=0;
+                    for (int i=0;i<8;i++)
+                        ping=(ping<<8)|(0xff&array[buffer.getIndex()+i]);
+                    _keepAlive.onPong(ping,System.nanoTime());
+                }
+
                 // Deliver frame if websocket is a FrameWebSocket
                 if (_onFrame!=null)
                 {
@@ -708,8 +1355,33 @@ public class WebSocketConnectionRFC6455 extends AbstractConnection implements We
                             return;
                         }
 
+                        // If streaming, feed the stream
+                        if (_inputStream!=null || _reader!=null)
+                        {
+                            feedStream(buffer,lastFrame);
+                            break;
+                        }
+
+                        // If text bytes, validate and append to the byte buffer
+                        if (_onTextBytes!=null && _opcode==WebSocketConnectionRFC6455.OP_TEXT)
+                        {
+                            _utf8Validator.validate(array,buffer.getIndex(),buffer.length());
+                            if (appendTextBytes(buffer) && lastFrame)
+                            {
+                                _utf8Validator.complete();
+                                _opcode=-1;
+                                try
+                                {
+                                    _onTextBytes.onTextMessage(_textBytes,0,_textLength);
+                                }
+                                finally
+                                {
+                                    releaseTextBytes();
+                                }
+                            }
+                        }
                         // If text, append to the message buffer
-                        if (_onTextMessage!=null && _opcode==WebSocketConnectionRFC6455.OP_TEXT)
+                        else if (_onTextMessage!=null && _opcode==WebSocketConnectionRFC6455.OP_TEXT)
                         {
                             if (_utf8.append(buffer.array(),buffer.getIndex(),buffer.length(),_connection.getMaxTextMessageSize()))
                             {
@@ -726,23 +1398,31 @@ public class WebSocketConnectionRFC6455 extends AbstractConnection implements We
                                 textMessageTooLarge();
                         }
 
-                        if (_opcode>=0 && _connection.getMaxBinaryMessageSize()>=0)
+                        if (_opcode==WebSocketConnectionRFC6455.OP_BINARY && _connection.getMaxBinaryMessageSize()>=0)
                         {
-                            if (_aggregate!=null && checkBinaryMessageSize(_aggregate.length(),buffer.length()))
+                            if (checkBinaryMessageSize(_aggregate.length(),buffer.length()))
                             {
-                                _aggregate.put(buffer);
+                                _aggregate.append(buffer);
 
-                                // If this is the last fragment, deliver
-                                if (lastFrame && _onBinaryMessage!=null)
+                                // If this is the last fragment, deliver and return the chunks to the pool
+                                if (lastFrame)
                                 {
                                     try
                                     {
-                                        _onBinaryMessage.onMessage(_aggregate.array(),_aggregate.getIndex(),_aggregate.length());
+                                        if (_onBinaryChunks!=null)
+                                            _onBinaryChunks.onMessage(_aggregate.toByteBuffers());
+                                        else if (_onBinaryBuffer!=null)
+                                            _onBinaryBuffer.onMessage(ByteBuffer.wrap(_aggregate.toArray()));
+                                        else
+                                        {
+                                            byte[] message=_aggregate.toArray();
+                                            _onBinaryMessage.onMessage(message,0,message.length);
+                                        }
                                     }
                                     finally
                                     {
                                         _opcode=-1;
-                                        _aggregate.clear();
+                                        _aggregate.release();
                                     }
                                 }
                             }
@@ -812,7 +1492,53 @@ public class WebSocketConnectionRFC6455 extends AbstractConnection implements We
                             return;
                         }
 
-                        if(_onTextMessage!=null)
+                        if (_onTextStream!=null)
+                        {
+                            final MessageReader reader=new MessageReader(_maxStreamBuffered,_endp.getMaxIdleTime());
+                            _reader=reader;
+                            if (!lastFrame)
+                                _opcode=WebSocketConnectionRFC6455.OP_TEXT;
+                            dispatchStream(new Runnable()
+                            {
+                                public void run()
+                                {
+                                    try
+                                    {
+                                        _onTextStream.onMessage(reader);
+                                    }
+                                    finally
+                                    {
+                                        reader.close();
+                                    }
+                                }
+                            });
+                            feedStream(buffer,lastFrame);
+                        }
+                        else if (_onTextBytes!=null)
+                        {
+                            if (lastFrame && _connection.getMaxTextMessageSize()>0 && buffer.length()>_connection.getMaxTextMessageSize())
+                            {
+                                // Same limit as appendTextBytes applies to an aggregated message
+                                textMessageTooLarge();
+                                return;
+                            }
+
+                            _utf8Validator.validate(array,buffer.getIndex(),buffer.length());
+                            if (lastFrame)
+                            {
+                                // A single frame is delivered from the parse buffer without copying
+                                _utf8Validator.complete();
+                                _onTextBytes.onTextMessage(array,buffer.getIndex(),buffer.length());
+                            }
+                            else if (_connection.getMaxTextMessageSize()<=0)
+                            {
+                                LOG.warn("Frame discarded. Text aggregation disabled for {}",_endp);
+                                errorClose(WebSocketConnectionRFC6455.CLOSE_POLICY_VIOLATION,"Text frame aggregation disabled");
+                            }
+                            else if (appendTextBytes(buffer))
+                                _opcode=WebSocketConnectionRFC6455.OP_TEXT;
+                        }
+                        else if(_onTextMessage!=null)
                         {
                             if (_connection.getMaxTextMessageSize()<=0)
                             {
@@ -853,19 +1579,43 @@ public class WebSocketConnectionRFC6455 extends AbstractConnection implements We
                             return;
                         }
 
-                        if (_onBinaryMessage!=null && checkBinaryMessageSize(0,buffer.length()))
+                        if (_onBinaryStream!=null)
+                        {
+                            final MessageInputStream stream=new MessageInputStream(_maxStreamBuffered,_endp.getMaxIdleTime());
+                            _inputStream=stream;
+                            if (!lastFrame)
+                                _opcode=opcode;
+                            dispatchStream(new Runnable()
+                            {
+                                public void run()
+                                {
+                                    try
+                                    {
+                                        _onBinaryStream.onMessage(stream);
+                                    }
+                                    finally
+                                    {
+                                        stream.close();
+                                    }
+                                }
+                            });
+                            feedStream(buffer,lastFrame);
+                        }
+                        else if ((_onBinaryChunks!=null || _onBinaryBuffer!=null || _onBinaryMessage!=null) && checkBinaryMessageSize(0,buffer.length()))
                         {
                             if (lastFrame)
                             {
-                                _onBinaryMessage.onMessage(array,buffer.getIndex(),buffer.length());
+                                if (_onBinaryChunks!=null)
+                                    _onBinaryChunks.onMessage(Collections.singletonList(toByteBuffer(buffer)));
+                                else if (_onBinaryBuffer!=null)
+                                    _onBinaryBuffer.onMessage(toByteBuffer(buffer));
+                                else
+                                    _onBinaryMessage.onMessage(array,buffer.getIndex(),buffer.length());
                             }
                             else if (_connection.getMaxBinaryMessageSize()>=0)
                             {
                                 _opcode=opcode;
-                                // TODO use a growing buffer rather than a fixed one.
-                                if (_aggregate==null)
-                                    _aggregate=new ByteArrayBuffer(_connection.getMaxBinaryMessageSize());
-                                _aggregate.put(buffer);
+                                _aggregate.append(buffer);
                             }
                             else
                             {
@@ -885,16 +1635,82 @@ public class WebSocketConnectionRFC6455 extends AbstractConnection implements We
             {
                 LOG.warn("NOTUTF8 - {} for {}",notUtf8,_endp, notUtf8);
                 LOG.debug(notUtf8);
+                failStreams(new IOException("Invalid UTF-8"));
                 errorClose(WebSocketConnectionRFC6455.CLOSE_BAD_PAYLOAD,"Invalid UTF-8");
             }
             catch(Throwable e)
             {
                 LOG.warn("{} for {}",e,_endp, e);
                 LOG.debug(e);
+                failStreams(new IOException(e.toString()));
                 errorClose(WebSocketConnectionRFC6455.CLOSE_SERVER_ERROR,"Internal Server Error: "+e);
             }
         }
 
+        /* ------------------------------------------------------------ */
+        /**
+         * Offer a frame to the current message stream, which may wait for the reader to make space.
+         */
+        private void feedStream(Buffer buffer, boolean lastFrame) throws IOException
+        {
+            if (_reader!=null)
+            {
+                _streamUtf8.append(buffer.array(),buffer.getIndex(),buffer.length(),Integer.MAX_VALUE);
+                if (lastFrame)
+                {
+                    // Checks that the message does not end within a UTF-8 sequence
+                    String chars=_streamUtf8.toString();
+                    _streamUtf8.reset();
+                    MessageReader reader=_reader;
+                    _reader=null;
+                    _opcode=-1;
+                    reader.offer(chars,true);
+                }
+                else
+                    _reader.offer(_streamUtf8.takePartialString(),false);
+            }
+            else if (_inputStream!=null)
+            {
+                MessageInputStream stream=_inputStream;
+                if (lastFrame)
+                {
+                    _inputStream=null;
+                    _opcode=-1;
+                }
+                stream.offer(buffer.array(),buffer.getIndex(),buffer.length(),lastFrame);
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        private void dispatchStream(Runnable task)
+        {
+            ThreadPool pool=_threadPool;
+            if (pool==null || !pool.dispatch(task))
+            {
+                Thread thread=new Thread(task,"WebSocketStream-"+_endp.getRemotePort());
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * Fail any message stream that has not been completely received.
+         */
+        void failStreams(IOException cause)
+        {
+            MessageInputStream stream=_inputStream;
+            _inputStream=null;
+            if (stream!=null)
+                stream.fail(cause);
+            MessageReader reader=_reader;
+            _reader=null;
+            if (reader!=null)
+                reader.fail(cause);
+            _streamUtf8.reset();
+        }
+
+        /* ------------------------------------------------------------ */
         private void errorClose(int code, String message)
         {
             _connection.close(code,message);
@@ -919,13 +1735,92 @@ public class WebSocketConnectionRFC6455 extends AbstractConnection implements We
                 LOG.warn("Binary message too large > {}B for {}",_connection.getMaxBinaryMessageSize(),_endp);
                 _connection.close(WebSocketConnectionRFC6455.CLOSE_MESSAGE_TOO_LARGE,"Message size > "+_connection.getMaxBinaryMessageSize());
                 _opcode=-1;
-                if (_aggregate!=null)
-                    _aggregate.clear();
+                _aggregate.release();
                 return false;
             }
             return true;
         }
 
+        /* ------------------------------------------------------------ */
+        /**
+         * Copy a frame parsed from a direct buffer to a reusable heap buffer.
+         */
+        private Buffer toHeapBuffer(Buffer buffer)
+        {
+            int length=buffer.length();
+            if (_heap==null || _heap.capacity()<length)
+                _heap=new ByteArrayBuffer(length);
+            _heap.clear();
+            buffer.peek(buffer.getIndex(),_heap.array(),0,length);
+            _heap.setPutIndex(length);
+            return _heap;
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return A read only ByteBuffer over the frame, which for a direct buffer is a
+         * reused view of the parse buffer, valid only until the next frame
+         */
+        private ByteBuffer toByteBuffer(Buffer buffer)
+        {
+            Buffer underlying=buffer.buffer();
+            if (underlying instanceof NIOBuffer)
+            {
+                if (_viewed!=underlying)
+                {
+                    _view=((NIOBuffer)underlying).getByteBuffer().asReadOnlyBuffer();
+                    _viewed=underlying;
+                }
+                _view.clear();
+                _view.limit(buffer.putIndex());
+                _view.position(buffer.getIndex());
+                return _view;
+            }
+            return ByteBuffer.wrap(buffer.array(),buffer.getIndex(),buffer.length()).asReadOnlyBuffer();
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * Append a text frame to the UTF-8 bytes of the current message, growing the
+         * buffer as needed up to the maximum text message size.
+         * @return false if the message is too large, in which case the connection is closed
+         */
+        private boolean appendTextBytes(Buffer buffer)
+        {
+            int max=_connection.getMaxTextMessageSize();
+            int length=_textLength+buffer.length();
+            if (length>max)
+            {
+                textMessageTooLarge();
+                return false;
+            }
+
+            if (_textBytes==null)
+                _textBytes=new byte[Math.min(max,Math.max(length,512))];
+            else if (length>_textBytes.length)
+            {
+                byte[] bytes=new byte[(int)Math.min(max,Math.max(length,2L*_textBytes.length))];
+                System.arraycopy(_textBytes,0,bytes,0,_textLength);
+                _textBytes=bytes;
+            }
+
+            buffer.peek(buffer.getIndex(),_textBytes,_textLength,buffer.length());
+            _textLength=length;
+            return true;
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * Reset the UTF-8 bytes of the current message, releasing a large buffer so that
+         * the connection does not keep one of up to the maximum text message size.
+         */
+        private void releaseTextBytes()
+        {
+            _textLength=0;
+            if (_textBytes!=null && _textBytes.length>MAX_RETAINED_TEXT_BYTES)
+                _textBytes=null;
+        }
+
         private void textMessageTooLarge()
         {
             LOG.warn("Text message too large > {} chars for {}",_connection.getMaxTextMessageSize(),_endp);
@@ -933,6 +1828,43 @@ public class WebSocketConnectionRFC6455 extends AbstractConnection implements We
 
             _opcode=-1;
             _utf8.reset();
+            _utf8Validator.reset();
+            releaseTextBytes();
+        }
+
+        /* ------------------------------------------------------------ */
+        public ByteBuffer getPayloadBuffer(byte flags, byte opcode, int length)
+        {
+            synchronized(WebSocketConnectionRFC6455.this)
+            {
+                if (_closedIn)
+                    return null;
+            }
+
+            // Payloads read directly would overtake messages queued for the application
+            if (_inbound.isQueuing())
+                return null;
+
+            // Frames that are in error are left to onFrame to report
+            if ((flags&0x7)!=0 || _closeCode!=0 && _closeCode!=CLOSE_NORMAL)
+                return null;
+            if (opcode!=OP_TEXT && opcode!=OP_BINARY && opcode!=OP_CONTINUATION)
+                return null;
+            return _onFrameBuffer.getPayloadBuffer(flags,opcode,length);
+        }
+
+        /* ------------------------------------------------------------ */
+        public void onPayload(byte flags, byte opcode, ByteBuffer buffer)
+        {
+            try
+            {
+                _onFrameBuffer.onPayload(flags,opcode,buffer);
+            }
+            catch(Throwable e)
+            {
+                LOG.warn("{} for {}",e,_endp, e);
+                errorClose(WebSocketConnectionRFC6455.CLOSE_SERVER_ERROR,"Internal Server Error: "+e);
+            }
         }
 
         public void close(int code,String message)
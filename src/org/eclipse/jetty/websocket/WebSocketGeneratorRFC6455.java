@@ -19,12 +19,15 @@
 package org.eclipse.jetty.websocket;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.eclipse.jetty.io.Buffer;
 import org.eclipse.jetty.io.EndPoint;
 import org.eclipse.jetty.io.EofException;
+import org.eclipse.jetty.io.nio.NIOBuffer;
 
 
 /**
@@ -33,18 +36,26 @@ import org.eclipse.jetty.io.EofException;
  * It is fully synchronized because it is likely that async
  * threads will call the addMessage methods while other
  * threads are flushing the generator.
+ * <p>
+ * Normally each frame is flushed as it is added.  When batching, frames are
+ * accumulated in the buffer, which is only flushed by adding a frame when it is
+ * full, so that many small frames are written with one write.
  */
 public class WebSocketGeneratorRFC6455 implements WebSocketGenerator
 {
+    private static final int __MIN_WIDE = 16;
     private final Lock _lock = new ReentrantLock();
     private final WebSocketBuffers _buffers;
     private final EndPoint _endp;
     private final byte[] _mask = new byte[4];
+    private final byte[] _header = new byte[14];
     private final MaskGen _maskGen;
-    private Buffer _buffer;
+    private volatile Buffer _buffer;
     private int _m;
+    private ByteBuffer _bufferView;
     private boolean _opsent;
     private boolean _closed;
+    private volatile boolean _batching;
 
     public WebSocketGeneratorRFC6455(WebSocketBuffers buffers, EndPoint endp)
     {
@@ -71,6 +82,44 @@ public class WebSocketGeneratorRFC6455 implements WebSocketGenerator
         }
     }
 
+    /**
+     * @param batching true if frames should be accumulated until the buffer is full or explicitly flushed
+     */
+    public void setBatching(boolean batching)
+    {
+        _batching=batching;
+    }
+
+    public boolean isBatching()
+    {
+        return _batching;
+    }
+
+    /**
+     * @param length The payload length of a frame
+     * @return true if a frame of the given length can be added to the buffer without flushing it
+     */
+    public boolean hasRoom(int length)
+    {
+        // Never wait for the lock, which is held by a blocked writer
+        if (!_lock.tryLock())
+            return false;
+        try
+        {
+            // Allow for the header and the expansion of a compressed payload
+            int room=length+64;
+            if (_buffer==null)
+                return room<=_buffers.getBufferSize();
+            if (_buffer.space()<=room)
+                _buffer.compact();
+            return _buffer.space()>room;
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
     public void addFrame(byte flags, byte opcode, byte[] content, int offset, int length) throws IOException
     {
         _lock.lock();
@@ -88,13 +137,19 @@ public class WebSocketGeneratorRFC6455 implements WebSocketGenerator
 
             boolean last = WebSocketConnectionRFC6455.isLastFrame(flags);
 
+            // A control frame may be sent between the fragments of a message, so must not change its state
+            boolean control = WebSocketConnectionRFC6455.isControlFrame(opcode);
+
             int space = mask ? 14 : 10;
 
             do
             {
-                opcode = _opsent ? WebSocketConnectionRFC6455.OP_CONTINUATION : opcode;
+                if (!control)
+                {
+                    opcode = _opsent ? WebSocketConnectionRFC6455.OP_CONTINUATION : opcode;
+                    _opsent = true;
+                }
                 opcode = (byte)(((0xf & flags) << 4) + (0xf & opcode));
-                _opsent = true;
 
                 int payload = length;
                 if (payload + space > _buffer.capacity())
@@ -114,43 +169,43 @@ public class WebSocketGeneratorRFC6455 implements WebSocketGenerator
                         flush();
                 }
 
-                // write the opcode and length
+                // write the opcode, length and mask as a single put
+                byte[] header = _header;
+                int h = 0;
+                header[h++] = opcode;
                 if (payload > 0xffff)
                 {
-                    _buffer.put(new byte[]{
-                            opcode,
-                            mask ? (byte)0xff : (byte)0x7f,
-                            (byte)0,
-                            (byte)0,
-                            (byte)0,
-                            (byte)0,
-                            (byte)((payload >> 24) & 0xff),
-                            (byte)((payload >> 16) & 0xff),
-                            (byte)((payload >> 8) & 0xff),
-                            (byte)(payload & 0xff)});
+                    header[h++] = mask ? (byte)0xff : (byte)0x7f;
+                    header[h++] = 0;
+                    header[h++] = 0;
+                    header[h++] = 0;
+                    header[h++] = 0;
+                    header[h++] = (byte)((payload >> 24) & 0xff);
+                    header[h++] = (byte)((payload >> 16) & 0xff);
+                    header[h++] = (byte)((payload >> 8) & 0xff);
+                    header[h++] = (byte)(payload & 0xff);
                 }
                 else if (payload >= 0x7e)
                 {
-                    _buffer.put(new byte[]{
-                            opcode,
-                            mask ? (byte)0xfe : (byte)0x7e,
-                            (byte)(payload >> 8),
-                            (byte)(payload & 0xff)});
+                    header[h++] = mask ? (byte)0xfe : (byte)0x7e;
+                    header[h++] = (byte)(payload >> 8);
+                    header[h++] = (byte)(payload & 0xff);
                 }
                 else
                 {
-                    _buffer.put(new byte[]{
-                            opcode,
-                            (byte)(mask ? (0x80 | payload) : payload)});
+                    header[h++] = (byte)(mask ? (0x80 | payload) : payload);
                 }
 
-                // write mask
                 if (mask)
                 {
                     _maskGen.genMask(_mask);
                     _m = 0;
-                    _buffer.put(_mask);
+                    header[h++] = _mask[0];
+                    header[h++] = _mask[1];
+                    header[h++] = _mask[2];
+                    header[h++] = _mask[3];
                 }
+                _buffer.put(header, 0, h);
 
                 // write payload
                 int remaining = payload;
@@ -160,10 +215,7 @@ public class WebSocketGeneratorRFC6455 implements WebSocketGenerator
                     int chunk = remaining < _buffer.space() ? remaining : _buffer.space();
 
                     if (mask)
-                    {
-                        for (int i = 0; i < chunk; i++)
-                            _buffer.put((byte)(content[offset + (payload - remaining) + i] ^ _mask[+_m++ % 4]));
-                    }
+                        putMasked(content, offset + (payload - remaining), chunk);
                     else
                         _buffer.put(content, offset + (payload - remaining), chunk);
 
@@ -171,13 +223,14 @@ public class WebSocketGeneratorRFC6455 implements WebSocketGenerator
                     if (_buffer.space() > 0)
                     {
                         // Gently flush the data, issuing a non-blocking write
-                        flushBuffer();
+                        if (!_batching)
+                            flushBuffer();
                     }
                     else
                     {
                         // Forcibly flush the data, issuing a blocking write
                         flush();
-                        if (remaining == 0)
+                        if (remaining == 0 && !_batching)
                         {
                             // Gently flush the data, issuing a non-blocking write
                             flushBuffer();
@@ -188,7 +241,8 @@ public class WebSocketGeneratorRFC6455 implements WebSocketGenerator
                 length -= payload;
             }
             while (length > 0);
-            _opsent = !last;
+            if (!control)
+                _opsent = !last;
 
             if (_buffer != null && _buffer.length() == 0)
             {
@@ -202,6 +256,142 @@ public class WebSocketGeneratorRFC6455 implements WebSocketGenerator
         }
     }
 
+    /**
+     * Add a complete message as a single frame, using the header and payload encoded by
+     * a {@link PreparedMessage}.  Only the mask is generated and applied while the payload
+     * is copied.  The frame must fit in an empty buffer.
+     */
+    public void addFrame(PreparedMessage message) throws IOException
+    {
+        _lock.lock();
+        try
+        {
+            if (_closed)
+                throw new EofException("Closed");
+
+            boolean mask = _maskGen != null;
+
+            if (_buffer == null)
+                _buffer = mask ? _buffers.getBuffer() : _buffers.getDirectBuffer();
+
+            byte[] prepared = message.getHeader();
+            byte[] payload = message.getPayload();
+            int h = prepared.length;
+            int frame = h + (mask ? 4 : 0) + payload.length;
+
+            // ensure there is space for the whole frame
+            if (_buffer.space() < frame)
+            {
+                flushBuffer();
+                _buffer.compact();
+                if (_buffer.space() < frame)
+                    flush();
+            }
+
+            if (mask)
+            {
+                byte[] header = _header;
+                System.arraycopy(prepared, 0, header, 0, h);
+                header[1] |= 0x80;
+                _maskGen.genMask(_mask);
+                _m = 0;
+                header[h++] = _mask[0];
+                header[h++] = _mask[1];
+                header[h++] = _mask[2];
+                header[h++] = _mask[3];
+                _buffer.put(header, 0, h);
+                putMasked(payload, 0, payload.length);
+            }
+            else
+            {
+                _buffer.put(prepared, 0, h);
+                _buffer.put(payload, 0, payload.length);
+            }
+
+            // Gently flush the data, issuing a non-blocking write
+            if (!_batching)
+                flushBuffer();
+
+            if (_buffer != null && _buffer.length() == 0)
+            {
+                _buffers.returnBuffer(_buffer);
+                _buffer = null;
+            }
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Mask and copy content into the buffer.
+     * Runs of 8 bytes are read, XORed with a 64 bit mask word rotated to the current mask
+     * phase and written with one long access each, through ByteBuffer views of the content
+     * and of the buffer's array or direct memory.  The view of the buffer's array is kept
+     * while the buffer is, but content is not referenced after the call.
+     */
+    private void putMasked(byte[] content, int offset, int length)
+    {
+        final int m = _m;
+        _m = (m + length) & 3;
+
+        ByteBuffer to;
+        byte[] array = _buffer.array();
+        if (_buffer instanceof NIOBuffer)
+            to = ((NIOBuffer)_buffer).getByteBuffer();
+        else if (array != null)
+        {
+            if (_bufferView == null || _bufferView.array() != array)
+                _bufferView = ByteBuffer.wrap(array);
+            to = _bufferView;
+        }
+        else
+        {
+            for (int i = 0; i < length; i++)
+                _buffer.put((byte)(content[offset + i] ^ _mask[(m + i) & 3]));
+            return;
+        }
+
+        int put = _buffer.putIndex();
+        int s = offset;
+        int d = put;
+        if (length >= __MIN_WIDE)
+        {
+            ByteBuffer from = ByteBuffer.wrap(content).order(to.order());
+
+            long mask = (_mask[m & 3] & 0xFFL) << 24 |
+                (_mask[(m + 1) & 3] & 0xFFL) << 16 |
+                (_mask[(m + 2) & 3] & 0xFFL) << 8 |
+                (_mask[(m + 3) & 3] & 0xFFL);
+            mask |= mask << 32;
+            if (to.order() == ByteOrder.LITTLE_ENDIAN)
+                mask = Long.reverseBytes(mask);
+
+            final int words = offset + (length & ~7);
+            while (s < words)
+            {
+                to.putLong(d, from.getLong(s) ^ mask);
+                s += 8;
+                d += 8;
+            }
+        }
+
+        // 8 is a multiple of the mask length, so the tail starts at phase m
+        final int end = offset + length;
+        if (array != null)
+        {
+            for (int i = m; s < end; i++)
+                array[d++] = (byte)(content[s++] ^ _mask[i & 3]);
+        }
+        else
+        {
+            for (int i = m; s < end; i++)
+                to.put(d++, (byte)(content[s++] ^ _mask[i & 3]));
+        }
+        _buffer.setPutIndex(put + length);
+    }
+
     public int flushBuffer() throws IOException
     {
         if (!_lock.tryLock())
@@ -268,20 +458,17 @@ public class WebSocketGeneratorRFC6455 implements WebSocketGenerator
 
     public boolean isBufferEmpty()
     {
-        _lock.lock();
-        try
-        {
-            return _buffer == null || _buffer.length() == 0;
-        }
-        finally
-        {
-            _lock.unlock();
-        }
+        // Do not wait for the lock, which is held by a blocked writer,
+        // so that the handle loop and control frames are not blocked behind it.
+        Buffer buffer = _buffer;
+        return buffer == null || buffer.length() == 0;
     }
 
     public void returnBuffer()
     {
-        _lock.lock();
+        // A writer holding the lock is using the buffer
+        if (!_lock.tryLock())
+            return;
         try
         {
             if (_buffer != null && _buffer.length() == 0)
@@ -0,0 +1,504 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.websocket;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import org.eclipse.jetty.io.AsyncEndPoint;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+
+/* ------------------------------------------------------------ */
+/**
+ * The inbound frame queue of a websocket connection.
+ * <p>
+ * Without an executor, frames are passed straight to the connection's frame handler,
+ * so application callbacks are called by the thread that parsed them.
+ * <p>
+ * With an executor, parsed frames are copied to a lock free queue and delivered in order
+ * by a serial task on the executor, so a slow application callback never holds the
+ * thread that reads the socket.  PING and PONG frames that are not consumed by the
+ * application are handled immediately, so PONGs and round trip times are not delayed
+ * behind queued messages.
+ * <p>
+ * With a {@link WebSocket.MessageRouter}, messages are spread over several lanes, each
+ * with its own queue, serial task and frame handler.  The lane of a message is chosen by the
+ * key the router extracts from its first frame, so messages with the same key are delivered
+ * in order while messages with different keys may be delivered in parallel.  A CLOSE frame
+ * and the close notification are barriers: they are delivered by the last lane to reach them,
+ * after the messages queued before them on all lanes.
+ * <p>
+ * With a conflation key function, a complete single frame message replaces an undelivered
+ * message with the same key and opcode, keeping its place in the queue, so a slow consumer
+ * only receives the latest message for each key and the queue is bounded by the number of
+ * distinct keys rather than by the backlog.  Fragmented messages and control frames are
+ * never conflated.
+ * <p>
+ * The number of queued bytes is bounded by a high watermark: once it is exceeded the
+ * connection is suspended, which stops parsing and removes the read interest of the
+ * endpoint, so that TCP flow control pushes back on the peer.  Once the queue has drained
+ * below the low watermark, the endpoint is dispatched to resume reading.
+ */
+class WebSocketInboundQueue implements WebSocketParser.FrameHandler
+{
+    private static final Logger LOG = Log.getLogger(WebSocketInboundQueue.class);
+
+    private final AtomicLong _queued = new AtomicLong();
+    private final AtomicLong _dropped = new AtomicLong();
+    private final AtomicLong _merged = new AtomicLong();
+    private final ConcurrentMap<Integer,Entry> _pending = new ConcurrentHashMap<Integer,Entry>();
+    private final WebSocketParser.FrameHandler _handler;
+    private final EndPoint _endp;
+    private final boolean _inlineControl;
+    private volatile Executor _executor;
+    private volatile Lane[] _lanes;
+    private volatile WebSocket.MessageRouter _router;
+    private volatile WebSocket.MessageRouter _conflation;
+    private volatile int _lowWatermark=32*1024;
+    private volatile int _highWatermark=64*1024;
+    private volatile boolean _suspended;
+    private Lane _lane;
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param handler The handler that frames are delivered to
+     * @param endp The endpoint to resume once the queue has drained
+     * @param inlineControl true if PING and PONG frames may be handled before queued frames
+     */
+    WebSocketInboundQueue(WebSocketParser.FrameHandler handler, EndPoint endp, boolean inlineControl)
+    {
+        _handler=handler;
+        _endp=endp;
+        _inlineControl=inlineControl;
+        _lanes=new Lane[]{new Lane(handler)};
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param executor The executor to deliver frames with, or null to deliver them on the parsing thread
+     * @param maxQueued The number of queued bytes above which reading is suspended
+     */
+    public void setExecutor(Executor executor, int maxQueued)
+    {
+        if (maxQueued<=0)
+            throw new IllegalArgumentException("maxQueued="+maxQueued);
+        _highWatermark=maxQueued;
+        _lowWatermark=maxQueued/2;
+        _executor=executor;
+    }
+
+    /* ------------------------------------------------------------ */
+    public Executor getExecutor()
+    {
+        return _executor;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param router The router that extracts the key of a message
+     * @param handlers The frame handlers of the lanes, the first of which must be the handler
+     * passed to the constructor.  Each handler is only called by its own lane.
+     */
+    public void setRouter(WebSocket.MessageRouter router, WebSocketParser.FrameHandler[] handlers)
+    {
+        if (handlers.length==0 || handlers[0]!=_handler)
+            throw new IllegalArgumentException("handlers");
+        Lane[] lanes=new Lane[handlers.length];
+        for (int i=0;i<lanes.length;i++)
+            lanes[i]=new Lane(handlers[i]);
+        _lanes=lanes;
+        _router=router;
+    }
+
+    /* ------------------------------------------------------------ */
+    public WebSocket.MessageRouter getRouter()
+    {
+        return _router;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param conflation The function that extracts the conflation key of a message, or null for no conflation
+     */
+    public void setConflation(WebSocket.MessageRouter conflation)
+    {
+        _conflation=conflation;
+    }
+
+    /* ------------------------------------------------------------ */
+    public WebSocket.MessageRouter getConflation()
+    {
+        return _conflation;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of messages that were replaced by a newer message before being delivered
+     */
+    public long getDroppedCount()
+    {
+        return _dropped.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of queued messages that have been replaced by at least one newer message
+     */
+    public long getMergedCount()
+    {
+        return _merged.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return true if frames are delivered by the executor
+     */
+    public boolean isQueuing()
+    {
+        return _executor!=null;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return true if more than the high watermark is queued, so parsing should stop
+     */
+    public boolean isSuspended()
+    {
+        return _suspended;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of bytes of frame payload that are queued
+     */
+    public long getQueueSize()
+    {
+        return _queued.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    public void onFrame(byte flags, byte opcode, Buffer buffer)
+    {
+        if (_executor==null || _inlineControl && (opcode==WebSocketConnectionRFC6455.OP_PING || opcode==WebSocketConnectionRFC6455.OP_PONG))
+        {
+            _handler.onFrame(flags,opcode,buffer);
+            return;
+        }
+
+        // The parse buffer is reused for the next frame, so the payload is copied
+        int length=buffer.length();
+        ByteArrayBuffer payload=new ByteArrayBuffer(length);
+        buffer.peek(buffer.getIndex(),payload.array(),0,length);
+        payload.setPutIndex(length);
+
+        // A complete message may replace an undelivered message with the same key
+        Integer key=null;
+        WebSocket.MessageRouter conflation=_conflation;
+        if (conflation!=null && WebSocketConnectionRFC6455.isLastFrame(flags) &&
+            (opcode==WebSocketConnectionRFC6455.OP_TEXT || opcode==WebSocketConnectionRFC6455.OP_BINARY))
+        {
+            try
+            {
+                int k=conflation.route(opcode,payload.array(),0,length);
+                if (k!=WebSocket.MessageRouter.NO_KEY)
+                    key=k;
+            }
+            catch(Throwable e)
+            {
+                LOG.warn("{} conflating for {}",e,_endp,e);
+            }
+
+            if (key!=null && conflate(key,opcode,payload))
+                return;
+        }
+
+        // Count the bytes before the entry can be taken by the delivering task
+        if (_queued.addAndGet(length)>_highWatermark)
+            _suspended=true;
+
+        Lane[] lanes=_lanes;
+        if (lanes.length>1 && opcode==WebSocketConnectionRFC6455.OP_CLOSE)
+            barrier(lanes,new Entry(flags,opcode,payload,null,lanes.length,null));
+        else
+        {
+            Entry entry=new Entry(flags,opcode,payload,null,0,key);
+            if (key!=null)
+                _pending.put(key,entry);
+            route(lanes,flags,opcode,payload).offer(entry);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Replace the payload of the undelivered message with the same key.  Only called by the
+     * parsing thread; the delivering lane takes the payload atomically, so a message is either
+     * replaced before it is delivered or queued afresh.
+     * @return true if the message was conflated
+     */
+    private boolean conflate(Integer key, byte opcode, Buffer payload)
+    {
+        Entry pending=_pending.get(key);
+        if (pending==null || pending._opcode!=opcode)
+            return false;
+
+        Buffer stale=pending.replace(payload);
+        if (stale==null)
+            return false;
+
+        if (!pending._merged)
+        {
+            pending._merged=true;
+            _merged.incrementAndGet();
+        }
+        _dropped.incrementAndGet();
+        _queued.addAndGet(payload.capacity()-stale.capacity());
+        return true;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Run a task after the queued frames of all lanes, or immediately if there is no executor.
+     */
+    public void execute(Runnable task)
+    {
+        if (_executor==null)
+        {
+            task.run();
+            return;
+        }
+        Lane[] lanes=_lanes;
+        barrier(lanes,new Entry((byte)0,(byte)0,null,task,lanes.length,null));
+    }
+
+    /* ------------------------------------------------------------ */
+    public void close(int code, String message)
+    {
+        _handler.close(code,message);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Choose the lane of a frame.  Only called by the parsing thread, which tracks the
+     * lane of a fragmented message so that its continuations follow its first frame.
+     */
+    private Lane route(Lane[] lanes, byte flags, byte opcode, Buffer payload)
+    {
+        if (lanes.length==1)
+            return lanes[0];
+
+        // Control frames go with the message they interrupt, continuations with their first frame
+        if (WebSocketConnectionRFC6455.isControlFrame(opcode) || opcode==WebSocketConnectionRFC6455.OP_CONTINUATION)
+        {
+            Lane lane=_lane==null?lanes[0]:_lane;
+            if (opcode==WebSocketConnectionRFC6455.OP_CONTINUATION && WebSocketConnectionRFC6455.isLastFrame(flags))
+                _lane=null;
+            return lane;
+        }
+
+        int key=0;
+        try
+        {
+            key=_router.route(opcode,payload.array(),payload.getIndex(),payload.length());
+        }
+        catch(Throwable e)
+        {
+            LOG.warn("{} routing for {}",e,_endp,e);
+        }
+
+        // Spread the bits of the key, so that keys differing only in high bits use different lanes
+        key*=0x9E3779B9;
+        Lane lane=lanes[(int)(((key^(key>>>16))&0xffffffffL)%lanes.length)];
+        if (!WebSocketConnectionRFC6455.isLastFrame(flags))
+            _lane=lane;
+        return lane;
+    }
+
+    /* ------------------------------------------------------------ */
+    private void barrier(Lane[] lanes, Entry entry)
+    {
+        for (Lane lane : lanes)
+            lane.offer(entry);
+    }
+
+    /* ------------------------------------------------------------ */
+    private void execute(Lane lane)
+    {
+        try
+        {
+            _executor.execute(lane);
+        }
+        catch(RejectedExecutionException e)
+        {
+            LOG.warn("Delivering on parsing thread: {} for {}",e,_endp);
+            lane.run();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    private void delivered(Buffer payload)
+    {
+        if (payload!=null && _queued.addAndGet(-payload.capacity())<=_lowWatermark && _suspended)
+        {
+            _suspended=false;
+            if (_endp instanceof AsyncEndPoint)
+                ((AsyncEndPoint)_endp).asyncDispatch();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    @Override
+    public String toString()
+    {
+        return String.format("%s@%x lanes=%d queued=%d suspended=%b",
+                getClass().getSimpleName(),
+                hashCode(),
+                _lanes.length,
+                _queued.get(),
+                _suspended);
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /**
+     * A queue of frames delivered to a frame handler in order by at most one thread at a time.
+     */
+    private class Lane implements Runnable
+    {
+        private final Queue<Entry> _queue = new ConcurrentLinkedQueue<Entry>();
+        private final AtomicBoolean _running = new AtomicBoolean();
+        private final WebSocketParser.FrameHandler _handler;
+
+        Lane(WebSocketParser.FrameHandler handler)
+        {
+            _handler=handler;
+        }
+
+        void offer(Entry entry)
+        {
+            _queue.add(entry);
+            if (_running.compareAndSet(false,true))
+                execute(this);
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * Deliver queued entries until the queue is empty.
+         */
+        public void run()
+        {
+            while (true)
+            {
+                Entry entry=_queue.poll();
+                if (entry==null)
+                {
+                    _running.set(false);
+
+                    // An entry added after the poll but before running was cleared is not lost
+                    if (_queue.isEmpty() || !_running.compareAndSet(false,true))
+                        return;
+                    continue;
+                }
+
+                // Only the last lane to reach a barrier delivers it
+                if (entry._barrier!=null && entry._barrier.decrementAndGet()>0)
+                    continue;
+
+                // Take the payload, so that it can no longer be replaced by a newer message
+                Buffer payload=entry.take();
+                if (entry._key!=null)
+                    _pending.remove(entry._key,entry);
+
+                try
+                {
+                    if (entry._task!=null)
+                        entry._task.run();
+                    else
+                        _handler.onFrame(entry._flags,entry._opcode,payload);
+                }
+                catch(Throwable e)
+                {
+                    LOG.warn("{} for {}",e,_endp,e);
+                }
+                finally
+                {
+                    delivered(payload);
+                }
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    private static class Entry
+    {
+        private static final AtomicReferenceFieldUpdater<Entry,Buffer> __payload =
+                AtomicReferenceFieldUpdater.newUpdater(Entry.class,Buffer.class,"_payload");
+
+        final byte _flags;
+        final byte _opcode;
+        final Runnable _task;
+        final AtomicInteger _barrier;
+        final Integer _key;
+        volatile Buffer _payload;
+        boolean _merged;
+
+        Entry(byte flags, byte opcode, Buffer payload, Runnable task, int lanes, Integer key)
+        {
+            _flags=flags;
+            _opcode=opcode;
+            _payload=payload;
+            _task=task;
+            _barrier=lanes>1?new AtomicInteger(lanes):null;
+            _key=key;
+        }
+
+        /**
+         * @return The replaced payload, or null if the payload has already been taken
+         */
+        Buffer replace(Buffer payload)
+        {
+            while (true)
+            {
+                Buffer stale=_payload;
+                if (stale==null)
+                    return null;
+                if (__payload.compareAndSet(this,stale,payload))
+                    return stale;
+            }
+        }
+
+        Buffer take()
+        {
+            return __payload.getAndSet(this,null);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.websocket;
+
+
+/* ------------------------------------------------------------ */
+/**
+ * The keepalive state of a websocket connection.
+ * <p>
+ * PINGs carry the {@link System#nanoTime()} at which they were sent, so that the
+ * PONG echoing the payload gives a round trip time sample.  The samples are smoothed
+ * with an exponentially weighted moving average, with the gain of 1/8 used for
+ * TCP's smoothed RTT, and the minimum and maximum are kept.
+ * <p>
+ * A PING is due once per interval, checked on each tick of the factory's keepalive
+ * timer.  If a PING is due while an earlier one is still unanswered, that PONG is
+ * counted as missed; once the maximum number of missed PONGs is reached the
+ * connection is considered dead.
+ */
+class WebSocketKeepAlive
+{
+    static final int NONE=0;
+    static final int PING=1;
+    static final int DEAD=-1;
+
+    private int _interval;
+    private int _maxMissed;
+    private long _nextPing;
+    private boolean _awaiting;
+    private long _firstUnanswered;
+    private long _lastPing;
+    private int _missed;
+    private long _rtt=-1;
+    private long _minRtt=-1;
+    private long _maxRtt=-1;
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param interval The interval in ms between PINGs, or 0 to disable
+     * @param maxMissed The number of missed PONGs after which the connection is dead, or 0 for no limit
+     */
+    synchronized void configure(int interval, int maxMissed)
+    {
+        _interval=interval;
+        _maxMissed=maxMissed;
+        _nextPing=0;
+        _awaiting=false;
+        _missed=0;
+    }
+
+    /* ------------------------------------------------------------ */
+    synchronized int getInterval()
+    {
+        return _interval;
+    }
+
+    /* ------------------------------------------------------------ */
+    synchronized int getMaxMissed()
+    {
+        return _maxMissed;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param now The time of the tick in ms
+     * @param nanos The current {@link System#nanoTime()}
+     * @return {@link #PING} if a PING with payload {@link #getLastPing()} should be sent,
+     * {@link #DEAD} if too many PONGs have been missed, else {@link #NONE}
+     */
+    synchronized int onTick(long now, long nanos)
+    {
+        if (_interval<=0)
+            return NONE;
+
+        // The first tick only starts the schedule, so that all connections
+        // configured with the same interval ping on the same ticks
+        if (_nextPing==0)
+        {
+            _nextPing=now+_interval;
+            return NONE;
+        }
+        if (now<_nextPing)
+            return NONE;
+        _nextPing+=_interval;
+        if (_nextPing<=now)
+            _nextPing=now+_interval;
+
+        if (_awaiting)
+        {
+            _missed++;
+            if (_maxMissed>0 && _missed>=_maxMissed)
+                return DEAD;
+        }
+        else
+        {
+            _awaiting=true;
+            _firstUnanswered=nanos;
+        }
+        _lastPing=nanos;
+        return PING;
+    }
+
+    /* ------------------------------------------------------------ */
+    synchronized long getLastPing()
+    {
+        return _lastPing;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param payload The timestamp carried by a PONG
+     * @param nanos The current {@link System#nanoTime()}
+     * @return true if the PONG answered one of our PINGs
+     */
+    synchronized boolean onPong(long payload, long nanos)
+    {
+        if (!_awaiting || payload-_firstUnanswered<0 || payload-_lastPing>0)
+            return false;
+
+        long sample=nanos-payload;
+        _rtt=_rtt<0?sample:_rtt+((sample-_rtt)>>3);
+        if (_minRtt<0 || sample<_minRtt)
+            _minRtt=sample;
+        if (sample>_maxRtt)
+            _maxRtt=sample;
+
+        // Any PINGs sent after this one are still unanswered
+        if (payload==_lastPing)
+            _awaiting=false;
+        else
+            _firstUnanswered=payload+1;
+        _missed=0;
+        return true;
+    }
+
+    /* ------------------------------------------------------------ */
+    synchronized long getRoundTripTime()
+    {
+        return _rtt;
+    }
+
+    /* ------------------------------------------------------------ */
+    synchronized long getMinRoundTripTime()
+    {
+        return _minRtt;
+    }
+
+    /* ------------------------------------------------------------ */
+    synchronized long getMaxRoundTripTime()
+    {
+        return _maxRtt;
+    }
+
+    /* ------------------------------------------------------------ */
+    @Override
+    public synchronized String toString()
+    {
+        return String.format("%s@%x interval=%d missed=%d rtt=%dus",
+                getClass().getSimpleName(),
+                hashCode(),
+                _interval,
+                _missed,
+                _rtt<0?-1:_rtt/1000);
+    }
+}
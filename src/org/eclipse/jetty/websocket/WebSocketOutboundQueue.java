@@ -0,0 +1,980 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.websocket;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.eclipse.jetty.io.EofException;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+
+/* ------------------------------------------------------------ */
+/**
+ * The outbound message queue of a websocket connection.
+ * <p>
+ * Asynchronous sends are added to a lock free queue and never block the caller.
+ * The queue is drained by {@link #drain()} from the connection's handle loop,
+ * which is dispatched when the selector reports the endpoint writable.  A message
+ * is only passed to the generator in fragments that fit its buffer once that buffer
+ * is empty, and the buffer is only flushed with non-blocking writes, so draining never
+ * blocks.  If the endpoint does not take the whole buffer, draining stops until the
+ * connection is dispatched again because the endpoint is writable.  A callback is completed once the last
+ * fragment of its message has been flushed.
+ * <p>
+ * Blocking sends go through {@link #sendMessage(byte, byte[], int, int)} or
+ * {@link #send(byte, byte, byte[], int, int)}, which first drain any queued messages
+ * (blocking), so that messages are written in order and fragments of different
+ * messages are never interleaved.
+ * <p>
+ * Control frames sent with {@link #sendControl(byte, byte[], int, int)} take a priority
+ * lane: if another thread is writing a message, they are written by that thread before
+ * its next fragment, so a PONG or CLOSE never waits behind a large message.  Once a
+ * CLOSE has been written, no further data frames are written.
+ * <p>
+ * When batching, queued messages are passed to the generator while its buffer has room,
+ * rather than only once it is empty, so that the handle loop writes them together.
+ * <p>
+ * The number of queued bytes is bounded by a high watermark: once it is exceeded,
+ * further asynchronous sends fail until the queue drains below the low watermark,
+ * unless room can be made for them as described below.
+ * Both transitions are reported to a {@link WebSocket.OnWritabilityChanged} websocket.
+ * <p>
+ * A message may be queued with a priority and a deadline.  Messages are passed to the
+ * generator in order of priority, then in the order they were queued; messages of the
+ * default priority 0 are kept in the lock free queue, others in a priority queue.  A
+ * message whose deadline has passed when it is due to be started is discarded.  When
+ * a message would exceed the high watermark, or the queue is not writable, and messages
+ * of a lower priority may be queued, expired messages are discarded and then, if that
+ * makes enough room, queued messages of lower priority that have not been started,
+ * lowest priority and newest first.
+ */
+class WebSocketOutboundQueue
+{
+    private static final Logger LOG = Log.getLogger(WebSocketOutboundQueue.class);
+
+    /** Orders entries by descending priority, then by the order they were queued */
+    private static final Comparator<Entry> __priority = new Comparator<Entry>()
+    {
+        public int compare(Entry e1, Entry e2)
+        {
+            if (e1._priority!=e2._priority)
+                return e1._priority>e2._priority?-1:1;
+            return e1._sequence<e2._sequence?-1:(e1._sequence==e2._sequence?0:1);
+        }
+    };
+
+    private final Lock _lock = new ReentrantLock();
+    private final Queue<Entry> _queue = new ConcurrentLinkedQueue<Entry>();
+    private final Queue<Entry> _prioritised = new PriorityBlockingQueue<Entry>(16,__priority);
+    private final List<Queue<Entry>> _queues = new ArrayList<Queue<Entry>>(2);
+    private final Queue<Entry> _controls = new ConcurrentLinkedQueue<Entry>();
+    private final AtomicLong _queued = new AtomicLong();
+    private final AtomicLong _sequence = new AtomicLong();
+    private final AtomicInteger _timed = new AtomicInteger();
+    private final AtomicLong _expired = new AtomicLong();
+    private final AtomicLong _dropped = new AtomicLong();
+    private final AtomicBoolean _writable = new AtomicBoolean(true);
+    private final WebSocketGenerator _outbound;
+    private final WebSocketGeneratorRFC6455 _generator;
+    private final boolean _extended;
+    private final WebSocket.OnWritabilityChanged _listener;
+    private final int _fragmentSize;
+    private volatile int _lowWatermark=32*1024;
+    private volatile int _highWatermark=128*1024;
+    private final Queue<Entry> _written = new ConcurrentLinkedQueue<Entry>();
+    private Entry _current;
+    private boolean _fragmenting;
+    private boolean _closed;
+    private volatile boolean _batching;
+    private volatile Throwable _failure;
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param outbound The generator (or extension) to write frames to
+     * @param generator The generator that the outbound writes to, whose buffer is flushed
+     * @param fragmentSize The maximum payload passed to the outbound per frame while draining.
+     * This must be small enough for a frame to fit in an empty generator buffer.
+     * @param listener The listener for writability changes, or null
+     */
+    WebSocketOutboundQueue(WebSocketGenerator outbound, WebSocketGeneratorRFC6455 generator, int fragmentSize, WebSocket.OnWritabilityChanged listener)
+    {
+        _outbound=outbound;
+        _generator=generator;
+        _extended=outbound!=generator;
+        _fragmentSize=fragmentSize;
+        _listener=listener;
+        _queues.add(_prioritised);
+        _queues.add(_queue);
+    }
+
+    /* ------------------------------------------------------------ */
+    public void setWatermarks(int low, int high)
+    {
+        if (low<0 || high<low)
+            throw new IllegalArgumentException("low="+low+" high="+high);
+        _lowWatermark=low;
+        _highWatermark=high;
+    }
+
+    /* ------------------------------------------------------------ */
+    public int getLowWatermark()
+    {
+        return _lowWatermark;
+    }
+
+    /* ------------------------------------------------------------ */
+    public int getHighWatermark()
+    {
+        return _highWatermark;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param batching true if messages may be added to a generator buffer that is not empty
+     */
+    public void setBatching(boolean batching)
+    {
+        _batching=batching;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The maximum payload of a frame written by {@link #drain()}
+     */
+    public int getFragmentSize()
+    {
+        return _fragmentSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of payload bytes queued and not yet passed to the generator
+     */
+    public long getQueuedBytes()
+    {
+        return _queued.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of messages discarded because their deadline passed before they were started
+     */
+    public long getExpiredCount()
+    {
+        return _expired.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of messages discarded to make room for a message of higher priority
+     */
+    public long getDroppedCount()
+    {
+        return _dropped.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    public boolean isWritable()
+    {
+        return _writable.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return true if there are no queued or partially written messages or control frames
+     */
+    public boolean isEmpty()
+    {
+        return isQueueEmpty() && _controls.isEmpty() && _current==null && _written.isEmpty();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return true if there are no queued messages or control frames left to pass to the generator,
+     * although written messages may not yet have been flushed
+     */
+    public boolean isDrained()
+    {
+        return isQueueEmpty() && _controls.isEmpty() && _current==null;
+    }
+
+    /* ------------------------------------------------------------ */
+    private boolean isQueueEmpty()
+    {
+        return _queue.isEmpty() && _prioritised.isEmpty();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Queue a message without blocking.
+     * @return true if the message was queued, false if the callback has been failed
+     */
+    public boolean enqueue(byte opcode, byte[] content, int offset, int length, WebSocket.SendCallback callback)
+    {
+        return enqueue(opcode,content,offset,length,0,0,callback);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Queue a message without blocking.
+     * @param priority The priority of the message, higher priorities being written first
+     * @param timeoutMs The time within which the message must be started, or 0 for no deadline
+     * @return true if the message was queued, false if the callback has been failed
+     */
+    public boolean enqueue(byte opcode, byte[] content, int offset, int length, int priority, long timeoutMs, WebSocket.SendCallback callback)
+    {
+        return enqueue(new Entry(opcode,content,offset,length,null,priority,deadline(timeoutMs),callback));
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Queue a prepared message without blocking.
+     * @return true if the message was queued, false if the callback has been failed
+     */
+    public boolean enqueue(PreparedMessage message, WebSocket.SendCallback callback)
+    {
+        return enqueue(message,0,0,callback);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Queue a prepared message without blocking.
+     * @param priority The priority of the message, higher priorities being written first
+     * @param timeoutMs The time within which the message must be started, or 0 for no deadline
+     * @return true if the message was queued, false if the callback has been failed
+     */
+    public boolean enqueue(PreparedMessage message, int priority, long timeoutMs, WebSocket.SendCallback callback)
+    {
+        return enqueue(new Entry(message.getOpcode(),message.getPayload(),0,message.getLength(),message,priority,deadline(timeoutMs),callback));
+    }
+
+    /* ------------------------------------------------------------ */
+    private static long deadline(long timeoutMs)
+    {
+        if (timeoutMs<=0)
+            return 0;
+        long deadline=System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        return deadline==0?1:deadline;
+    }
+
+    /* ------------------------------------------------------------ */
+    private boolean enqueue(Entry entry)
+    {
+        entry._sequence=_sequence.incrementAndGet();
+
+        // Once not writable, only a message that may discard lower priority messages can be queued
+        boolean room=_writable.get();
+        if ((!room || _queued.get()+entry._length>_highWatermark) && (entry._priority>0 || !_prioritised.isEmpty()))
+            room=makeRoom(entry) || room;
+        if (!room)
+        {
+            failed(entry._callback,new IOException("Outbound queue full: "+_queued.get()+">"+_highWatermark));
+            return false;
+        }
+
+        // Count the length before the entry is visible to a draining thread, which reduces it
+        if (_queued.addAndGet(entry._length)>_highWatermark && _writable.compareAndSet(true,false))
+            writabilityChanged(false);
+        if (entry._deadline!=0)
+            _timed.incrementAndGet();
+        if (entry._priority==0)
+            _queue.add(entry);
+        else
+            _prioritised.add(entry);
+
+        Throwable failure=_failure;
+        if (failure!=null)
+        {
+            failAll(failure);
+            return false;
+        }
+        return true;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Discard queued messages to make room for an entry without exceeding the high watermark.
+     * Expired messages are discarded first, then lower priority messages that have not been
+     * started, lowest priority and newest first, but only if that makes enough room.
+     * Entries are removed without the lock, so an entry polled concurrently by the draining
+     * thread is never discarded.
+     * @return true if there is room for the entry
+     */
+    private boolean makeRoom(Entry entry)
+    {
+        if (_timed.get()>0)
+        {
+            long now=System.nanoTime();
+            for (Queue<Entry> queue : _queues)
+            {
+                for (Entry queued : queue)
+                {
+                    if (queued._deadline!=0 && now-queued._deadline>=0 && queue.remove(queued))
+                    {
+                        _timed.decrementAndGet();
+                        expired(queued);
+                    }
+                }
+            }
+        }
+
+        long excess=_queued.get()+entry._length-_highWatermark;
+        if (excess<=0)
+            return true;
+
+        // Only messages of a lower priority than the entry may be discarded
+        List<Entry> candidates=new ArrayList<Entry>();
+        for (Queue<Entry> queue : _queues)
+        {
+            if (queue==_queue && entry._priority<=0)
+                continue;
+            for (Entry queued : queue)
+                if (queued._priority<entry._priority)
+                    candidates.add(queued);
+        }
+        Collections.sort(candidates,Collections.reverseOrder(__priority));
+
+        long room=0;
+        int victims=0;
+        while (room<excess && victims<candidates.size())
+            room+=candidates.get(victims++)._length;
+        if (room<excess)
+            return false;
+
+        for (Entry victim : candidates.subList(0,victims))
+        {
+            if ((victim._priority==0?_queue:_prioritised).remove(victim))
+            {
+                if (victim._deadline!=0)
+                    _timed.decrementAndGet();
+                _queued.addAndGet(-victim._length);
+                _dropped.incrementAndGet();
+                failed(victim._callback,new IOException("Dropped for a message of priority "+entry._priority));
+            }
+        }
+        return true;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Take the next message to start, in order of priority, discarding expired messages.
+     * Must be called with the lock held.
+     */
+    private Entry poll()
+    {
+        while (true)
+        {
+            Entry entry;
+            Entry first=_prioritised.peek();
+            if (first!=null && first._priority>0)
+                entry=_prioritised.poll();
+            else
+            {
+                entry=_queue.poll();
+                if (entry==null)
+                    entry=_prioritised.poll();
+            }
+            if (entry==null)
+                return null;
+            if (entry._deadline==0)
+                return entry;
+            _timed.decrementAndGet();
+            if (System.nanoTime()-entry._deadline<0)
+                return entry;
+            expired(entry);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    private void expired(Entry entry)
+    {
+        _queued.addAndGet(-entry._length);
+        _expired.incrementAndGet();
+        failed(entry._callback,new TimeoutException("Expired before sent"));
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Blocking send of a frame, after any queued messages have been written.
+     */
+    public void send(byte flags, byte opcode, byte[] content, int offset, int length) throws IOException
+    {
+        boolean writable;
+        _lock.lock();
+        try
+        {
+            drainBlocking();
+            writeControls(true);
+            if (_closed)
+                throw new EofException("Closed");
+            _outbound.addFrame(flags,opcode,content,offset,length);
+            _fragmenting=!WebSocketConnectionRFC6455.isLastFrame(flags);
+            writable=checkLowWatermark();
+        }
+        finally
+        {
+            release(true);
+        }
+        if (writable)
+            writabilityChanged(true);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Blocking send of a message, after any queued messages have been written.
+     * A message larger than the fragment size is sent as several frames, so that
+     * control frames may be written between them.
+     */
+    public void sendMessage(byte opcode, byte[] content, int offset, int length) throws IOException
+    {
+        boolean writable;
+        _lock.lock();
+        try
+        {
+            drainBlocking();
+            byte frameOpcode=opcode;
+            do
+            {
+                writeControls(true);
+                if (_closed)
+                    throw new EofException("Closed");
+                int chunk=Math.min(_fragmentSize,length);
+                boolean last=chunk==length;
+                _outbound.addFrame(last?(byte)WebSocketConnectionRFC6455.FLAG_FIN:0,frameOpcode,content,offset,chunk);
+                frameOpcode=WebSocketConnectionRFC6455.OP_CONTINUATION;
+                offset+=chunk;
+                length-=chunk;
+            }
+            while (length>0);
+            writable=checkLowWatermark();
+        }
+        finally
+        {
+            release(true);
+        }
+        if (writable)
+            writabilityChanged(true);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Blocking send of a prepared message, after any queued messages have been written.
+     * If the outbound is the generator and the message fits in a single frame, the
+     * prepared header and payload are copied directly into the generator buffer,
+     * otherwise the encoded payload is sent as an ordinary message.
+     */
+    public void sendMessage(PreparedMessage message) throws IOException
+    {
+        if (_extended || message.getLength()>_fragmentSize)
+        {
+            sendMessage(message.getOpcode(),message.getPayload(),0,message.getLength());
+            return;
+        }
+
+        boolean writable;
+        _lock.lock();
+        try
+        {
+            drainBlocking();
+            writeControls(true);
+            if (_closed)
+                throw new EofException("Closed");
+            _generator.addFrame(message);
+            writable=checkLowWatermark();
+        }
+        finally
+        {
+            release(true);
+        }
+        if (writable)
+            writabilityChanged(true);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Send a control frame ahead of any data.  If another thread is writing, the frame
+     * is written by that thread before its next fragment, otherwise it is written now.
+     */
+    public void sendControl(byte opcode, byte[] content, int offset, int length) throws IOException
+    {
+        byte[] copy=new byte[length];
+        System.arraycopy(content,offset,copy,0,length);
+        _controls.add(new Entry(opcode,copy,0,length,null,0,0,null));
+
+        if (_lock.tryLock())
+        {
+            try
+            {
+                writeControls(true);
+            }
+            finally
+            {
+                release(true);
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Blocking write of all queued messages.
+     */
+    public void flush() throws IOException
+    {
+        boolean writable;
+        _lock.lock();
+        try
+        {
+            drainBlocking();
+            writeControls(true);
+            writable=checkLowWatermark();
+        }
+        finally
+        {
+            release(true);
+        }
+        if (writable)
+            writabilityChanged(true);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Write queued messages without blocking.
+     * @return the number of bytes passed to the generator, or 0 if no progress was possible
+     * @throws IOException if the connection failed, in which case all queued messages have been failed
+     */
+    public int drain() throws IOException
+    {
+        if (isEmpty())
+            return 0;
+        if (!_lock.tryLock())
+            return 0;
+
+        int drained=0;
+        boolean writable;
+        try
+        {
+            while (true)
+            {
+                // When batching, keep filling the buffer until it has no room for another fragment
+                if (!_outbound.isBufferEmpty() && !(_batching && _generator.hasRoom(_fragmentSize)))
+                {
+                    // Never wait for the endpoint: the handle loop schedules a write for what is left
+                    _generator.flushBuffer();
+                    if (!_outbound.isBufferEmpty())
+                        break;
+                }
+
+                // The generator is empty, so anything previously written has been flushed
+                completeWritten();
+
+                if (writeControls(false))
+                    continue;
+
+                if (_closed)
+                {
+                    failAll(new EofException("Closed"));
+                    break;
+                }
+
+                if (_fragmenting)
+                    break;
+
+                Entry entry=_current==null?poll():_current;
+                if (entry==null)
+                    break;
+
+                drained+=writeFragment(entry,_fragmentSize);
+            }
+            writable=checkLowWatermark();
+        }
+        catch(IOException e)
+        {
+            failAll(e);
+            throw e;
+        }
+        finally
+        {
+            release(false);
+        }
+
+        if (writable)
+            writabilityChanged(true);
+        return drained;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Fail all queued messages
+     * @param cause The reason for the failure
+     */
+    public void failAll(Throwable cause)
+    {
+        if (_failure==null)
+            _failure=cause;
+
+        // Never wait here, as a writer may hold the lock while it waits for the endpoint,
+        // which may itself be closing.  The writer fails the messages when it releases the lock.
+        if (!_lock.tryLock())
+            return;
+        try
+        {
+            Entry written;
+            while ((written=_written.poll())!=null)
+                failed(written._callback,cause);
+            if (_current!=null)
+            {
+                _queued.addAndGet(-_current._length);
+                failed(_current._callback,cause);
+            }
+            _current=null;
+
+            for (Queue<Entry> queue : _queues)
+            {
+                Entry entry;
+                while ((entry=queue.poll())!=null)
+                {
+                    if (entry._deadline!=0)
+                        _timed.decrementAndGet();
+                    _queued.addAndGet(-entry._length);
+                    failed(entry._callback,cause);
+                }
+            }
+            _controls.clear();
+        }
+        finally
+        {
+            _lock.unlock();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* Must be called with the lock held */
+    private void drainBlocking() throws IOException
+    {
+        if (_failure!=null)
+            throw new EofException(_failure);
+        try
+        {
+            if (_current==null && _written.isEmpty() && isQueueEmpty())
+                return;
+
+            Entry entry=_current==null?poll():_current;
+            while (entry!=null)
+            {
+                writeControls(true);
+                if (_closed)
+                    throw new EofException("Closed");
+                writeFragment(entry,_fragmentSize);
+                if (_current==null)
+                {
+                    if (!_batching)
+                        _outbound.flush();
+                    completeWritten();
+                    entry=poll();
+                }
+            }
+            if (_outbound.isBufferEmpty())
+                completeWritten();
+        }
+        catch(IOException e)
+        {
+            failAll(e);
+            throw e;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Write the pending control frames.  Must be called with the lock held.
+     * @param blocking If false, frames are only written to an empty generator
+     * @return true if any frames were written
+     */
+    private boolean writeControls(boolean blocking) throws IOException
+    {
+        boolean written=false;
+        while (!_controls.isEmpty())
+        {
+            // Control frames are at most 125 bytes, so fit a batch with room for a fragment
+            if (!blocking && !_outbound.isBufferEmpty() && !(_batching && _generator.hasRoom(125)))
+                break;
+            Entry control=_controls.poll();
+            if (control==null)
+                break;
+            if (_closed)
+                continue;
+            _outbound.addFrame((byte)WebSocketConnectionRFC6455.FLAG_FIN,control._opcode,control._content,0,control._length);
+            if (control._opcode==WebSocketConnectionRFC6455.OP_CLOSE)
+                _closed=true;
+            written=true;
+        }
+        return written;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Release the lock, then write any control frames that were added while it was
+     * held but not seen by the holder.
+     */
+    private void release(boolean blocking)
+    {
+        while (true)
+        {
+            _lock.unlock();
+            Throwable failure=_failure;
+            boolean fail=failure!=null && !(isQueueEmpty() && _current==null && _written.isEmpty());
+            if (!fail && _controls.isEmpty() || !_lock.tryLock())
+                return;
+            if (fail)
+            {
+                failAll(failure);
+                continue;
+            }
+            try
+            {
+                if (!writeControls(blocking))
+                {
+                    _lock.unlock();
+                    return;
+                }
+            }
+            catch(IOException e)
+            {
+                LOG.debug(e);
+                _lock.unlock();
+                return;
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* Must be called with the lock held */
+    private int writeFragment(Entry entry, int size) throws IOException
+    {
+        int chunk=Math.min(size,entry._length);
+        boolean last=chunk==entry._length;
+        byte opcode=entry._started?WebSocketConnectionRFC6455.OP_CONTINUATION:entry._opcode;
+        byte flags=(byte)(last?WebSocketConnectionRFC6455.FLAG_FIN:0);
+
+        try
+        {
+            if (last && !entry._started && entry._prepared!=null && !_extended)
+                _generator.addFrame(entry._prepared);
+            else
+                _outbound.addFrame(flags,opcode,entry._content,entry._offset,chunk);
+        }
+        catch(IOException e)
+        {
+            _current=entry;
+            throw e;
+        }
+
+        entry._started=true;
+        entry._offset+=chunk;
+        entry._length-=chunk;
+        _queued.addAndGet(-chunk);
+
+        if (last)
+        {
+            _current=null;
+            _written.add(entry);
+        }
+        else
+            _current=entry;
+        return chunk;
+    }
+
+    /* ------------------------------------------------------------ */
+    private void completeWritten()
+    {
+        if (!_written.isEmpty() && _outbound.isBufferEmpty())
+        {
+            Entry written;
+            while ((written=_written.poll())!=null)
+                succeeded(written._callback);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    private boolean checkLowWatermark()
+    {
+        return _queued.get()<=_lowWatermark && _writable.compareAndSet(false,true);
+    }
+
+    /* ------------------------------------------------------------ */
+    private void writabilityChanged(boolean writable)
+    {
+        if (_listener!=null)
+        {
+            try
+            {
+                _listener.onWritabilityChanged(writable);
+            }
+            catch(Throwable e)
+            {
+                LOG.warn(e);
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    private static void succeeded(WebSocket.SendCallback callback)
+    {
+        if (callback!=null)
+        {
+            try
+            {
+                callback.onSendComplete();
+            }
+            catch(Throwable e)
+            {
+                LOG.warn(e);
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    private static void failed(WebSocket.SendCallback callback, Throwable cause)
+    {
+        LOG.debug(cause);
+        if (callback!=null)
+        {
+            try
+            {
+                callback.onSendFailed(cause);
+            }
+            catch(Throwable e)
+            {
+                LOG.warn(e);
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    @Override
+    public String toString()
+    {
+        return String.format("%s@%x queued=%d writable=%b expired=%d dropped=%d",
+                getClass().getSimpleName(),
+                hashCode(),
+                _queued.get(),
+                _writable.get(),
+                _expired.get(),
+                _dropped.get());
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    private static class Entry
+    {
+        final byte _opcode;
+        final byte[] _content;
+        final PreparedMessage _prepared;
+        final int _priority;
+        final long _deadline;
+        final WebSocket.SendCallback _callback;
+        long _sequence;
+        int _offset;
+        int _length;
+        boolean _started;
+
+        Entry(byte opcode, byte[] content, int offset, int length, PreparedMessage prepared, int priority, long deadline, WebSocket.SendCallback callback)
+        {
+            _opcode=opcode;
+            _content=content;
+            _prepared=prepared;
+            _offset=offset;
+            _length=length;
+            _priority=priority;
+            _deadline=deadline;
+            _callback=callback;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /**
+     * A {@link Future} that is completed by the send callbacks.
+     */
+    static class FutureSendCallback implements Future<Void>, WebSocket.SendCallback
+    {
+        private final CountDownLatch _done = new CountDownLatch(1);
+        private volatile Throwable _failure;
+
+        public void onSendComplete()
+        {
+            _done.countDown();
+        }
+
+        public void onSendFailed(Throwable cause)
+        {
+            _failure=cause;
+            _done.countDown();
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            return false;
+        }
+
+        public boolean isCancelled()
+        {
+            return false;
+        }
+
+        public boolean isDone()
+        {
+            return _done.getCount()==0;
+        }
+
+        public Void get() throws InterruptedException, ExecutionException
+        {
+            _done.await();
+            if (_failure!=null)
+                throw new ExecutionException(_failure);
+            return null;
+        }
+
+        public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+        {
+            if (!_done.await(timeout,unit))
+                throw new TimeoutException();
+            if (_failure!=null)
+                throw new ExecutionException(_failure);
+            return null;
+        }
+    }
+}
@@ -18,6 +18,8 @@
 
 package org.eclipse.jetty.websocket;
 
+import java.nio.ByteBuffer;
+
 import org.eclipse.jetty.io.Buffer;
 
 
@@ -39,6 +41,26 @@ public interface WebSocketParser
         void close(int code,String message);
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * A handler that may take the payload of a frame too large for the parse
+     * buffer, which is then read directly into the supplied buffer.
+     */
+    public interface PayloadHandler
+    {
+        /**
+         * Called when the header of a large data frame has been parsed.
+         * @return A buffer with at least length bytes remaining into which the payload is read,
+         * or null to parse the frame normally
+         */
+        ByteBuffer getPayloadBuffer(byte flags, byte opcode, int length);
+
+        /**
+         * Called when the payload has been read, with the position of the buffer advanced past it.
+         */
+        void onPayload(byte flags, byte opcode, ByteBuffer buffer);
+    }
+
     Buffer getBuffer();
 
     /**
@@ -19,10 +19,13 @@
 package org.eclipse.jetty.websocket;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import org.eclipse.jetty.io.Buffer;
 import org.eclipse.jetty.io.Buffers;
 import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.io.View;
+import org.eclipse.jetty.io.nio.ChannelEndPoint;
 import org.eclipse.jetty.util.log.Log;
 import org.eclipse.jetty.util.log.Logger;
 
@@ -39,7 +42,7 @@ public class WebSocketParserRFC6455 implements WebSocketParser
 
     public enum State {
 
-        START(0), OPCODE(1), LENGTH_7(1), LENGTH_16(2), LENGTH_63(8), MASK(4), PAYLOAD(0), DATA(0), SKIP(1), SEEK_EOF(1);
+        START(0), OPCODE(1), LENGTH_7(1), LENGTH_16(2), LENGTH_63(8), MASK(4), PAYLOAD(0), DATA(0), DIRECT(0), SKIP(1), SEEK_EOF(1);
 
         int _needs;
 
@@ -66,9 +69,14 @@ public class WebSocketParserRFC6455 implements WebSocketParser
     private long _length;
     private boolean _masked;
     private final byte[] _mask = new byte[4];
+    private final View _data = new View();
     private int _m;
     private boolean _skip;
     private boolean _fragmentFrames=true;
+    private boolean _direct;
+    private PayloadHandler _payloadHandler;
+    private ByteBuffer _payload;
+    private int _payloadEnd;
 
     /* ------------------------------------------------------------ */
     /**
@@ -106,6 +114,35 @@ public class WebSocketParserRFC6455 implements WebSocketParser
         _fragmentFrames = fakeFragments;
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * @return True if the network is read into, and frames parsed from, direct buffers.
+     */
+    public boolean isDirect()
+    {
+        return _direct;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param direct True if the network should be read into, and frames parsed from, direct
+     * buffers, which avoids the copy of every byte read into a heap buffer.  Frames are then
+     * delivered to the handler in buffers without an {@link Buffer#array()}.
+     */
+    public void setDirect(boolean direct)
+    {
+        _direct = direct;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param handler The handler that may take the payload of frames too large for the buffer, or null
+     */
+    public void setPayloadHandler(PayloadHandler handler)
+    {
+        _payloadHandler = handler;
+    }
+
     /* ------------------------------------------------------------ */
     public boolean isBufferEmpty()
     {
@@ -129,7 +166,7 @@ public class WebSocketParserRFC6455 implements WebSocketParser
     public int parseNext()
     {
         if (_buffer==null)
-            _buffer=_buffers.getBuffer();
+            _buffer=_direct?_buffers.getDirectBuffer():_buffers.getBuffer();
 
         boolean progress=false;
         int filled=-1;
@@ -137,6 +174,15 @@ public class WebSocketParserRFC6455 implements WebSocketParser
         // Loop until a datagram call back or can't fill anymore
         while(!progress && (!_endp.isInputShutdown()||_buffer.length()>0))
         {
+            // Read a large payload directly into the handler's buffer
+            if (_state==State.DIRECT)
+            {
+                filled=fillPayload();
+                if (_state!=State.DIRECT)
+                    progress=true;
+                break;
+            }
+
             int available=_buffer.length();
 
             // Fill buffer if we need a byte or need length
@@ -151,17 +197,8 @@ public class WebSocketParserRFC6455 implements WebSocketParser
                     // Can we send a fake frame?
                     if (_fragmentFrames && _state==State.DATA)
                     {
-                        Buffer data =_buffer.get(4*(available/4));
+                        Buffer data = getData(4*(available/4));
                         _buffer.compact();
-                        if (_masked)
-                        {
-                            if (data.array()==null)
-                                data=_buffer.asMutableBuffer();
-                            byte[] array = data.array();
-                            final int end=data.putIndex();
-                            for (int i=data.getIndex();i<end;i++)
-                                array[i]^=_mask[_m++%4];
-                        }
 
                         // System.err.printf("%s %s %s >>\n",TypeUtil.toHexString(_flags),TypeUtil.toHexString(_opcode),data.length());
                         _bytesNeeded-=data.length();
@@ -198,7 +235,7 @@ public class WebSocketParserRFC6455 implements WebSocketParser
             // if we are here, then we have sufficient bytes to process the current state.
             // Parse the buffer byte by byte (unless it is STATE_DATA)
             byte b;
-            while (_state!=State.DATA && available>=(_state==State.SKIP?1:_bytesNeeded))
+            while (_state!=State.DATA && _state!=State.DIRECT && available>=(_state==State.SKIP?1:_bytesNeeded))
             {
                 switch (_state)
                 {
@@ -209,6 +246,32 @@ public class WebSocketParserRFC6455 implements WebSocketParser
                         continue;
 
                     case OPCODE:
+                        // Decode the whole header in one pass if it is all buffered
+                        int header=parseHeader(available);
+                        if (header>0)
+                        {
+                            available-=header;
+
+                            if (WebSocketConnectionRFC6455.isControlFrame(_opcode)&&!WebSocketConnectionRFC6455.isLastFrame(_flags))
+                            {
+                                LOG.warn("Fragmented Control from "+_endp);
+                                _handler.close(WebSocketConnectionRFC6455.CLOSE_PROTOCOL,"Fragmented control");
+                                progress=true;
+                                _skip=true;
+                            }
+                            else if ((header-(_masked?4:0)==10?_length>=_buffer.capacity():_length>_buffer.capacity()) && !_fragmentFrames)
+                            {
+                                // Same limits as the LENGTH_16 and LENGTH_63 states
+                                progress=true;
+                                _handler.close(WebSocketConnectionRFC6455.CLOSE_POLICY_VIOLATION,"frame size "+_length+">"+_buffer.capacity());
+                                _skip=true;
+                            }
+
+                            _state=State.PAYLOAD;
+                            _bytesNeeded=_state.getNeeds();
+                            continue;
+                        }
+
                         b=_buffer.get();
                         available--;
                         _opcode=(byte)(b&0xf);
@@ -298,9 +361,12 @@ public class WebSocketParserRFC6455 implements WebSocketParser
                     case PAYLOAD:
                         _bytesNeeded=(int)_length;
                         _state=_skip?State.SKIP:State.DATA;
+                        if (_state==State.DATA && startPayload(available))
+                            available=0;
                         break;
 
                     case DATA:
+                    case DIRECT:
                         break;
 
                     case SKIP:
@@ -332,16 +398,7 @@ public class WebSocketParserRFC6455 implements WebSocketParser
                 }
                 else
                 {
-                    Buffer data =_buffer.get(_bytesNeeded);
-                    if (_masked)
-                    {
-                        if (data.array()==null)
-                            data=_buffer.asMutableBuffer();
-                        byte[] array = data.array();
-                        final int end=data.putIndex();
-                        for (int i=data.getIndex();i<end;i++)
-                            array[i]^=_mask[_m++%4];
-                    }
+                    Buffer data = getData(_bytesNeeded);
 
                     // System.err.printf("%s %s %s >>\n",TypeUtil.toHexString(_flags),TypeUtil.toHexString(_opcode),data.length());
 
@@ -358,13 +415,214 @@ public class WebSocketParserRFC6455 implements WebSocketParser
         return progress?1:filled;
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * Decode a frame header in one pass, if all of it is buffered (as it always is once
+     * 14 bytes are available), rather than a byte at a time through the states.
+     * @param available The number of bytes in the buffer
+     * @return The number of header bytes consumed, or 0 if the header is incomplete
+     */
+    private int parseHeader(int available)
+    {
+        if (available<2)
+            return 0;
+
+        int index=_buffer.getIndex();
+        byte b=_buffer.peek(index+1);
+        boolean masked=(b&0x80)!=0;
+        int length=0x7f&b;
+        int header=(length==0x7f?10:(length==0x7e?4:2))+(masked?4:0);
+        if (available<header)
+            return 0;
+
+        b=_buffer.peek(index);
+        _opcode=(byte)(b&0xf);
+        _flags=(byte)(0xf&(b>>4));
+        _masked=masked;
+
+        int i=index+2;
+        if (length==0x7e)
+        {
+            length=(0xff&_buffer.peek(i++))<<8;
+            length|=0xff&_buffer.peek(i++);
+            _length=length;
+        }
+        else if (length==0x7f)
+        {
+            long l=0;
+            for (int end=i+8;i<end;i++)
+                l=l*0x100+(0xff&_buffer.peek(i));
+            _length=l;
+        }
+        else
+            _length=length;
+
+        if (masked)
+        {
+            _mask[0]=_buffer.peek(i++);
+            _mask[1]=_buffer.peek(i++);
+            _mask[2]=_buffer.peek(i++);
+            _mask[3]=_buffer.peek(i);
+            _m=0;
+        }
+
+        _buffer.skip(header);
+        return header;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Offer the payload of a frame too large for the buffer to the payload handler.
+     * If it supplies a buffer, the payload already buffered is copied to it and the
+     * parser moves to the DIRECT state to read the rest.
+     * @param available The number of bytes in the buffer, all of which are payload
+     * @return true if the payload is to be read directly
+     */
+    private boolean startPayload(int available)
+    {
+        if (_payloadHandler==null || _length<=_buffer.capacity() || _length>Integer.MAX_VALUE ||
+            _masked!=_shouldBeMasked || WebSocketConnectionRFC6455.isControlFrame(_opcode))
+            return false;
+
+        ByteBuffer payload=_payloadHandler.getPayloadBuffer(_flags,_opcode,(int)_length);
+        if (payload==null)
+            return false;
+        if (payload.remaining()<_length)
+            throw new IllegalArgumentException("payload buffer "+payload.remaining()+"<"+_length);
+
+        _payload=payload;
+        _payloadEnd=payload.position()+(int)_length;
+        int start=payload.position();
+        byte[] array=_buffer.array();
+        if (array!=null)
+            payload.put(array,_buffer.getIndex(),available);
+        else
+        {
+            for (int i=0;i<available;i++)
+                payload.put(_buffer.peek(_buffer.getIndex()+i));
+        }
+        _buffer.skip(available);
+        unmaskPayload(start);
+        _bytesNeeded=0;
+        _state=State.DIRECT;
+        return true;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Read the rest of a payload into the handler's buffer.  A channel endpoint is read
+     * directly into it, with any bytes beyond the payload read into the buffer, otherwise
+     * the buffer is filled and the payload copied from it.
+     * @return The number of bytes read, or -1 for EOF
+     */
+    private int fillPayload()
+    {
+        int filled=0;
+        try
+        {
+            while (_payload.position()<_payloadEnd)
+            {
+                int start=_payload.position();
+                int limit=_payload.limit();
+                int n;
+                _payload.limit(_payloadEnd);
+                try
+                {
+                    _buffer.compact();
+                    if (_endp instanceof ChannelEndPoint)
+                        n=((ChannelEndPoint)_endp).fill(_payload,_buffer);
+                    else
+                    {
+                        n=_endp.isInputShutdown()?-1:_endp.fill(_buffer);
+                        if (n>0)
+                        {
+                            Buffer data=_buffer.get(Math.min(_buffer.length(),_payloadEnd-start));
+                            byte[] array=data.array();
+                            if (array!=null)
+                                _payload.put(array,data.getIndex(),data.length());
+                            else
+                            {
+                                for (int i=data.getIndex();i<data.putIndex();i++)
+                                    _payload.put(data.peek(i));
+                            }
+                        }
+                    }
+                }
+                finally
+                {
+                    _payload.limit(limit);
+                }
+                unmaskPayload(start);
+
+                if (n<=0)
+                    return filled>0?filled:n;
+                filled+=n;
+            }
+        }
+        catch(IOException e)
+        {
+            LOG.debug(e);
+            return -1;
+        }
+
+        ByteBuffer payload=_payload;
+        _payload=null;
+        _state=State.START;
+        _payloadHandler.onPayload(_flags,_opcode,payload);
+        return filled;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Unmask the payload written to the handler's buffer since start.
+     */
+    private void unmaskPayload(int start)
+    {
+        if (!_masked)
+            return;
+        int end=_payload.position();
+        for (int i=start;i<end;i++)
+            _payload.put(i,(byte)(_payload.get(i)^_mask[_m++&3]));
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Consume payload from the buffer, unmasking it in place if need be.
+     * @param length The number of bytes
+     * @return A view of the payload, which is reused for every frame
+     */
+    private Buffer getData(int length)
+    {
+        int get=_buffer.getIndex();
+        int end=get+length;
+        _data.update(_buffer);
+        _data.update(get,end);
+        _buffer.skip(length);
+
+        if (_masked)
+        {
+            byte[] array=_buffer.array();
+            if (array!=null)
+            {
+                for (int i=get;i<end;i++)
+                    array[i]^=_mask[_m++&3];
+            }
+            else
+            {
+                for (int i=get;i<end;i++)
+                    _buffer.poke(i,(byte)(_buffer.peek(i)^_mask[_m++&3]));
+            }
+        }
+        return _data;
+    }
+
     /* ------------------------------------------------------------ */
     public void fill(Buffer buffer)
     {
         if (buffer!=null && buffer.length()>0)
         {
             if (_buffer==null)
-                _buffer=_buffers.getBuffer();
+                _buffer=_direct?_buffers.getDirectBuffer():_buffers.getBuffer();
 
             _buffer.put(buffer);
             buffer.clear();
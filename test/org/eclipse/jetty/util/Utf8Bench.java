@@ -0,0 +1,211 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.util;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/* ------------------------------------------------------------ */
+/**
+ * Compares {@link Utf8StringBuilder#append(byte[], int, int, int)} with the
+ * byte at a time loop it replaced.
+ * <p>
+ * First a differential fuzz appends random UTF-8, invalid bytes and random
+ * limits, split at random points, to both and compares the return values,
+ * exceptions and decoded text. Then both decode a 4KB ASCII, mostly ASCII
+ * and CJK message 20k times and the throughput is printed.  Both share
+ * appendByte in one JVM, so the byte at a time figure is indicative only;
+ * for a like for like "before" run this against the parent tree.
+ * <p>
+ * Usage: <code>Utf8Bench [fuzzCases]</code>, 200k by default.
+ * Exits with status 1 on any mismatch.
+ */
+public class Utf8Bench
+{
+    private static final String[] PARTS = {"a","hello ","é","€","😀","\u0000","x1234567"};
+
+    /* ------------------------------------------------------------ */
+    public static void main(String[] args) throws Exception
+    {
+        int cases = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+        int mismatches = fuzz(cases);
+        System.out.println("fuzz cases=" + cases + " mismatches=" + mismatches);
+
+        bench("ascii", "The quick brown fox jumps over the lazy dog 0123456789 {\"k\":\"v\"},");
+        bench("mixed", "Grüße aus Köln, 東京 and naïve café; ascii mostly here ....");
+        bench("cjk", "東京都渋谷区神南一丁目東京都渋谷区神南一丁目");
+
+        System.exit(mismatches == 0 ? 0 : 1);
+    }
+
+    /* ------------------------------------------------------------ */
+    private static int fuzz(int cases) throws Exception
+    {
+        Random random = new Random(7);
+        int mismatches = 0;
+        for (int c = 0; c < cases; c++)
+        {
+            byte[] bytes;
+            if (random.nextInt(4) == 0)
+            {
+                bytes = new byte[random.nextInt(40)];
+                random.nextBytes(bytes);
+            }
+            else
+            {
+                StringBuilder text = new StringBuilder();
+                int n = random.nextInt(20);
+                for (int i = 0; i < n; i++)
+                    text.append(PARTS[random.nextInt(PARTS.length)]);
+                bytes = text.toString().getBytes(StringUtil.__UTF8);
+            }
+
+            int splits = random.nextInt(3);
+            int[] cuts = new int[splits + 1];
+            for (int i = 0; i < splits; i++)
+                cuts[i] = random.nextInt(bytes.length + 1);
+            cuts[splits] = bytes.length;
+            Arrays.sort(cuts);
+            int maxChars = random.nextInt(3) == 0 ? Integer.MAX_VALUE : random.nextInt(60);
+
+            String fast = run(new Utf8StringBuilder(4), bytes, cuts, maxChars);
+            String slow = run(new ByteAtATime(), bytes, cuts, maxChars);
+            if (!fast.equals(slow) && mismatches++ < 5)
+                System.out.println("MISMATCH " + Arrays.toString(bytes) + " maxChars=" + maxChars + "\n fast=" + fast + "\n slow=" + slow);
+        }
+        return mismatches;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the append results, any exception and the decoded text
+     */
+    private static String run(Utf8Appendable utf8, byte[] bytes, int[] cuts, int maxChars)
+    {
+        StringBuilder result = new StringBuilder();
+        try
+        {
+            int offset = 0;
+            for (int cut : cuts)
+            {
+                boolean appended = utf8 instanceof ByteAtATime
+                    ? ((ByteAtATime)utf8).appendBytes(bytes, offset, cut - offset, maxChars)
+                    : utf8.append(bytes, offset, cut - offset, maxChars);
+                result.append(appended ? 'T' : 'F');
+                offset = cut;
+                if (!appended)
+                    break;
+            }
+        }
+        catch (RuntimeException e)
+        {
+            result.append("E:").append(e.getMessage());
+        }
+        result.append('|').append(utf8._appendable);
+        return result.toString();
+    }
+
+    /* ------------------------------------------------------------ */
+    private static void bench(String name, String unit) throws Exception
+    {
+        byte[] unitBytes = unit.getBytes(StringUtil.__UTF8);
+        int copies = Math.max(1, 4096 / unitBytes.length);
+        byte[] message = new byte[unitBytes.length * copies];
+        for (int i = 0; i < copies; i++)
+            System.arraycopy(unitBytes, 0, message, i * unitBytes.length, unitBytes.length);
+
+        Utf8StringBuilder fast = new Utf8StringBuilder(message.length);
+        ByteAtATime slow = new ByteAtATime();
+        int iterations = 20000;
+        for (int round = 0; round < 8; round++)
+        {
+            long t0 = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+            {
+                slow.clear();
+                slow.appendBytes(message, 0, message.length, 1 << 20);
+            }
+            long t1 = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+            {
+                fast.reset();
+                fast.append(message, 0, message.length, 1 << 20);
+            }
+            long t2 = System.nanoTime();
+
+            // The first rounds warm up the JIT
+            if (round >= 6)
+                System.out.printf("%-5s %d bytes: byte at a time %4.0f MB/s, append %4.0f MB/s (%.1fx)%n",
+                    name, message.length,
+                    message.length * iterations * 1e3 / (t1 - t0),
+                    message.length * iterations * 1e3 / (t2 - t1),
+                    (t1 - t0) / (double)(t2 - t1));
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /**
+     * The append loop before the ASCII fast path: checks the limit and
+     * decodes one byte at a time.
+     */
+    private static class ByteAtATime extends Utf8Appendable
+    {
+        private final StringBuilder _buffer;
+
+        ByteAtATime()
+        {
+            super(new StringBuilder());
+            _buffer = (StringBuilder)_appendable;
+        }
+
+        @Override
+        public int length()
+        {
+            return _buffer.length();
+        }
+
+        void clear()
+        {
+            reset();
+            _buffer.setLength(0);
+        }
+
+        boolean appendBytes(byte[] b, int offset, int length, int maxChars)
+        {
+            try
+            {
+                int end = offset + length;
+                for (int i = offset; i < end; i++)
+                {
+                    if (length() > maxChars)
+                        return false;
+                    appendByte(b[i]);
+                }
+                return true;
+            }
+            catch (IOException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,221 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.websocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* ------------------------------------------------------------ */
+/**
+ * Measures outbound batching: small messages sent to a loopback sink.
+ * <p>
+ * The sink server counts the messages received and the reads it took to
+ * receive them, so the messages per read show how well frames were packed
+ * into writes. Each mode opens a new connection and sends N 32 byte binary
+ * messages:
+ * <dl>
+ * <dt>off</dt><dd>no batching</dd>
+ * <dt>delay0, delay200us, delay1000us</dt><dd>{@link WebSocket.Connection#setBatchDelay(int)}</dd>
+ * <dt>begin/end100</dt><dd>{@link WebSocket.Connection#beginBatch()} and
+ * {@link WebSocket.Connection#endBatch()} around every 100 messages</dd>
+ * <dt>async-off, async-delay0</dt><dd>sendMessageAsync without and with batching</dd>
+ * </dl>
+ * All modes are run twice and the second round is printed.
+ * <p>
+ * Usage: <code>BatchBench [messages]</code>, 200k by default.
+ */
+public class BatchBench
+{
+    private static final String[] MODES = {"off","delay0","delay200us","delay1000us","begin/end100","async-off","async-delay0"};
+
+    private final AtomicLong _messages = new AtomicLong();
+    private final AtomicLong _reads = new AtomicLong();
+
+    /* ------------------------------------------------------------ */
+    public static void main(String[] args) throws Exception
+    {
+        int n=args.length>0?Integer.parseInt(args[0]):200000;
+        BatchBench bench = new BatchBench();
+        final ServerSocket server = new ServerSocket(0,50,InetAddress.getByName("127.0.0.1"));
+        bench.startSink(server);
+
+        WebSocketClientFactory factory = new WebSocketClientFactory();
+        factory.start();
+        URI uri = new URI("ws://127.0.0.1:"+server.getLocalPort()+"/");
+        WebSocket socket = new WebSocket()
+        {
+            public void onOpen(Connection connection)
+            {
+            }
+
+            public void onClose(int closeCode, String message)
+            {
+            }
+        };
+
+        for (int round=0;round<2;round++)
+        {
+            for (String mode : MODES)
+            {
+                WebSocket.Connection connection = factory.newWebSocketClient().open(uri,socket).get(5,TimeUnit.SECONDS);
+                connection.setOutboundWatermarks(1<<24,1<<26);
+                if (mode.endsWith("delay0"))
+                    connection.setBatchDelay(0);
+                else if (mode.equals("delay200us"))
+                    connection.setBatchDelay(200);
+                else if (mode.equals("delay1000us"))
+                    connection.setBatchDelay(1000);
+                boolean async=mode.startsWith("async");
+                boolean batches=mode.startsWith("begin");
+
+                byte[] message=new byte[32];
+                bench._messages.set(0);
+                bench._reads.set(0);
+                long start=System.nanoTime();
+                for (int i=0;i<n;i++)
+                {
+                    if (batches && i%100==0)
+                        connection.beginBatch();
+                    if (async)
+                        connection.sendMessageAsync(message,0,message.length);
+                    else
+                        connection.sendMessage(message,0,message.length);
+                    if (batches && i%100==99)
+                        connection.endBatch();
+                }
+                long sent=System.nanoTime();
+                while (bench._messages.get()<n && System.nanoTime()-start<TimeUnit.SECONDS.toNanos(60))
+                    Thread.sleep(0,100000);
+                long end=System.nanoTime();
+
+                if (round>0)
+                    System.out.printf("%-13s %8.0f msg/s  reads=%6d  msgs/read=%6.1f  lastRecvLag=%.1fms%n",
+                        mode,n*1e9/(end-start),bench._reads.get(),bench._messages.get()/(double)bench._reads.get(),(end-sent)/1e6);
+                connection.close();
+                Thread.sleep(50);
+            }
+        }
+
+        factory.stop();
+        System.exit(0);
+    }
+
+    /* ------------------------------------------------------------ */
+    private void startSink(final ServerSocket server)
+    {
+        Thread acceptor = new Thread("sink")
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    while (true)
+                    {
+                        final Socket socket=server.accept();
+                        Thread thread = new Thread("sink-"+socket.getPort())
+                        {
+                            @Override
+                            public void run()
+                            {
+                                try
+                                {
+                                    sink(socket);
+                                }
+                                catch (IOException e)
+                                {
+                                    // connection gone
+                                }
+                            }
+                        };
+                        thread.setDaemon(true);
+                        thread.start();
+                    }
+                }
+                catch (IOException e)
+                {
+                    // server closed
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Counts complete data messages and reads until a CLOSE frame.
+     */
+    private void sink(Socket socket) throws IOException
+    {
+        InputStream in=socket.getInputStream();
+        EchoServer.upgrade(in,socket.getOutputStream());
+
+        byte[] buffer=new byte[1<<16];
+        int filled=0;
+        while (true)
+        {
+            int n=in.read(buffer,filled,buffer.length-filled);
+            if (n<0)
+                return;
+            _reads.incrementAndGet();
+            filled+=n;
+
+            int pos=0;
+            while (filled-pos>=2)
+            {
+                int b0=buffer[pos]&0xff;
+                int b1=buffer[pos+1]&0xff;
+                int length=b1&0x7f;
+                int header=2;
+                if (length==126)
+                {
+                    if (filled-pos<4)
+                        break;
+                    length=((buffer[pos+2]&0xff)<<8)|(buffer[pos+3]&0xff);
+                    header=4;
+                }
+                else if (length==127)
+                    throw new IOException("frame too large for the sink");
+                if ((b1&0x80)!=0)
+                    header+=4;
+                if (filled-pos<header+length)
+                    break;
+                pos+=header+length;
+
+                int opcode=b0&0xf;
+                if (opcode==WebSocketConnectionRFC6455.OP_CLOSE)
+                {
+                    socket.close();
+                    return;
+                }
+                if ((b0&0x80)!=0 && opcode!=WebSocketConnectionRFC6455.OP_PING && opcode!=WebSocketConnectionRFC6455.OP_PONG)
+                    _messages.incrementAndGet();
+            }
+            System.arraycopy(buffer,pos,buffer,0,filled-pos);
+            filled-=pos;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.websocket;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.jetty.util.B64Code;
+
+/* ------------------------------------------------------------ */
+/**
+ * Blocking loopback websocket echo server for the harnesses.
+ * <p>
+ * Each connection gets a thread that echoes every data frame and answers
+ * PINGs with PONGs. An 8 byte PING payload is read as the sender's
+ * {@link System#nanoTime()}, and the time it took to arrive is recorded.
+ * Reads can be throttled to simulate a slow peer.
+ */
+public class EchoServer extends Thread
+{
+    private final ServerSocket _server;
+    private final List<Long> _pingArrivalMs = Collections.synchronizedList(new ArrayList<Long>());
+    private volatile int _throttleKbPerMs;
+
+    /* ------------------------------------------------------------ */
+    public EchoServer() throws IOException
+    {
+        this(new ServerSocket());
+        _server.setReceiveBufferSize(65536);
+        _server.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"),0),50);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param server a bound server socket, for example an SSLServerSocket
+     */
+    public EchoServer(ServerSocket server)
+    {
+        super("EchoServer");
+        _server=server;
+        setDaemon(true);
+    }
+
+    /* ------------------------------------------------------------ */
+    public int getPort()
+    {
+        return _server.getLocalPort();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param kbPerMs the payload KB read per ms, or 0 to read as fast as possible
+     */
+    public void setThrottle(int kbPerMs)
+    {
+        _throttleKbPerMs=kbPerMs;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the ms each timestamped PING took from sender to this server
+     */
+    public List<Long> getPingArrivalMs()
+    {
+        synchronized (_pingArrivalMs)
+        {
+            return new ArrayList<Long>(_pingArrivalMs);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    @Override
+    public void run()
+    {
+        try
+        {
+            while (true)
+            {
+                final Socket socket=_server.accept();
+                Thread thread = new Thread("EchoServer-"+socket.getPort())
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            serve(socket);
+                        }
+                        catch (IOException e)
+                        {
+                            // connection gone
+                        }
+                        catch (InterruptedException e)
+                        {
+                            // stopped
+                        }
+                    }
+                };
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+        catch (IOException e)
+        {
+            // server closed
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    private void serve(Socket socket) throws IOException, InterruptedException
+    {
+        socket.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        OutputStream out = socket.getOutputStream();
+        upgrade(in,out);
+
+        while (true)
+        {
+            int b0=in.readUnsignedByte();
+            int b1=in.readUnsignedByte();
+            long length=b1&0x7f;
+            if (length==126)
+                length=in.readUnsignedShort();
+            else if (length==127)
+                length=in.readLong();
+            byte[] mask=new byte[4];
+            if ((b1&0x80)!=0)
+                in.readFully(mask);
+
+            byte[] payload=new byte[(int)length];
+            int throttle=_throttleKbPerMs;
+            if (throttle>0)
+            {
+                for (int read=0;read<payload.length;)
+                {
+                    int n=Math.min(payload.length-read,throttle*1024);
+                    in.readFully(payload,read,n);
+                    read+=n;
+                    Thread.sleep(1);
+                }
+            }
+            else
+                in.readFully(payload);
+            for (int i=0;i<payload.length;i++)
+                payload[i]^=mask[i&3];
+
+            int opcode=b0&0xf;
+            if (opcode==WebSocketConnectionRFC6455.OP_PING)
+            {
+                if (payload.length==8)
+                    _pingArrivalMs.add((System.nanoTime()-readLong(payload,0))/1000000);
+                b0=(b0&0xf0)|WebSocketConnectionRFC6455.OP_PONG;
+            }
+            else if (opcode==WebSocketConnectionRFC6455.OP_PONG)
+                continue;
+
+            writeFrame(out,b0,payload);
+            if (opcode==WebSocketConnectionRFC6455.OP_CLOSE)
+            {
+                socket.close();
+                return;
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Reads the upgrade request and accepts it.
+     */
+    public static void upgrade(InputStream in, OutputStream out) throws IOException
+    {
+        String key=null;
+        String line;
+        while ((line=readLine(in)).length()>0)
+        {
+            if (line.toLowerCase().startsWith("sec-websocket-key:"))
+                key=line.substring(18).trim();
+        }
+
+        String accept;
+        try
+        {
+            MessageDigest md = MessageDigest.getInstance("SHA1");
+            md.update((key+"258EAFA5-E914-47DA-95CA-C5AB0DC85B11").getBytes("ISO-8859-1"));
+            accept=new String(B64Code.encode(md.digest()));
+        }
+        catch (java.security.NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+
+        String response=
+            "HTTP/1.1 101 Switching Protocols\r\n"+
+            "Upgrade: websocket\r\n"+
+            "Connection: Upgrade\r\n"+
+            "Sec-WebSocket-Accept: "+accept+"\r\n"+
+            "\r\n";
+        out.write(response.getBytes("ISO-8859-1"));
+        out.flush();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Writes an unmasked frame with the given first byte.
+     */
+    public static void writeFrame(OutputStream out, int b0, byte[] payload) throws IOException
+    {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.length+10);
+        frame.write(b0);
+        if (payload.length<126)
+            frame.write(payload.length);
+        else if (payload.length<65536)
+        {
+            frame.write(126);
+            frame.write(payload.length>>8);
+            frame.write(payload.length);
+        }
+        else
+        {
+            frame.write(127);
+            for (int i=7;i>=0;i--)
+                frame.write((int)(((long)payload.length)>>(8*i)));
+        }
+        frame.write(payload,0,payload.length);
+        synchronized (out)
+        {
+            frame.writeTo(out);
+            out.flush();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    public static byte[] timestamp()
+    {
+        long now=System.nanoTime();
+        byte[] stamp=new byte[8];
+        for (int i=0;i<8;i++)
+            stamp[i]=(byte)(now>>(56-8*i));
+        return stamp;
+    }
+
+    /* ------------------------------------------------------------ */
+    public static long readLong(byte[] data, int offset)
+    {
+        long value=0;
+        for (int i=0;i<8;i++)
+            value=(value<<8)|(data[offset+i]&0xff);
+        return value;
+    }
+
+    /* ------------------------------------------------------------ */
+    static String readLine(InputStream in) throws IOException
+    {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c=in.read())!='\n')
+        {
+            if (c<0)
+                throw new EOFException();
+            if (c!='\r')
+                line.append((char)c);
+        }
+        return line.toString();
+    }
+}
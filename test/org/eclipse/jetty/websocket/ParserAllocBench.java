@@ -0,0 +1,173 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.websocket;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.EndPoint;
+
+/* ------------------------------------------------------------ */
+/**
+ * Counts the bytes allocated by {@link WebSocketParserRFC6455} per parsed frame.
+ * <p>
+ * A stream of small masked binary frames (7 and 16 bit lengths) is fed to the
+ * parser in 1500 byte reads, over and over. Every payload is checked after
+ * unmasking. Allocation is read with {@link com.sun.management.ThreadMXBean},
+ * so this needs a HotSpot based JVM.
+ * <p>
+ * Usage: <code>ParserAllocBench [frames]</code>, 2M frames by default.
+ * Exits with status 1 if any bytes are allocated in steady state.
+ */
+public class ParserAllocBench
+{
+    private static final int READ_SIZE=1500;
+
+    private final byte[] _stream;
+    private int _pos;
+    private long _frames;
+    private long _bytes;
+    private boolean _corrupt;
+
+    /* ------------------------------------------------------------ */
+    ParserAllocBench(byte[] stream)
+    {
+        _stream=stream;
+    }
+
+    /* ------------------------------------------------------------ */
+    static byte[] newStream(int size)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Random random = new Random(1);
+        while (out.size()<size)
+        {
+            int length=random.nextInt(3)==0?200+random.nextInt(300):random.nextInt(60);
+            byte[] mask={(byte)random.nextInt(),(byte)random.nextInt(),(byte)random.nextInt(),(byte)random.nextInt()};
+
+            out.write(0x82);
+            if (length<126)
+                out.write(0x80|length);
+            else
+            {
+                out.write(0x80|126);
+                out.write(length>>8);
+                out.write(length);
+            }
+            out.write(mask,0,4);
+            for (int i=0;i<length;i++)
+                out.write((byte)i^mask[i&3]);
+        }
+        return out.toByteArray();
+    }
+
+    /* ------------------------------------------------------------ */
+    public static void main(String[] args) throws Exception
+    {
+        int frames=args.length>0?Integer.parseInt(args[0]):2000000;
+        final ParserAllocBench bench = new ParserAllocBench(newStream(60000));
+
+        WebSocketParser.FrameHandler handler = new WebSocketParser.FrameHandler()
+        {
+            public void onFrame(byte flags, byte opcode, Buffer buffer)
+            {
+                bench._frames++;
+                int length=buffer.length();
+                int index=buffer.getIndex();
+                for (int i=0;i<length;i++)
+                    if (buffer.peek(index+i)!=(byte)i)
+                        bench._corrupt=true;
+                bench._bytes+=length;
+            }
+
+            public void close(int code, String message)
+            {
+                System.out.println("close "+code+" "+message);
+                bench._corrupt=true;
+            }
+        };
+
+        WebSocketParserRFC6455 parser = new WebSocketParserRFC6455(new WebSocketBuffers(8192),bench.new StreamEndPoint(),handler,true);
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long thread=Thread.currentThread().getId();
+
+        // Warm up until the JIT has compiled the parse loop
+        while (bench._frames<frames/10)
+            parser.parseNext();
+
+        bench._frames=0;
+        bench._bytes=0;
+        long start=System.nanoTime();
+        long allocated=mx.getThreadAllocatedBytes(thread);
+        while (bench._frames<frames)
+            parser.parseNext();
+        allocated=mx.getThreadAllocatedBytes(thread)-allocated;
+        long ns=System.nanoTime()-start;
+
+        System.out.printf("frames=%d payload=%dB corrupt=%b%n",bench._frames,bench._bytes,bench._corrupt);
+        System.out.printf("allocated=%dB (%.3f B/frame) %.1f Mframes/s%n",allocated,allocated/(double)bench._frames,bench._frames*1000.0/ns);
+        System.exit(bench._corrupt||allocated>0?1:0);
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /**
+     * Replays the stream in fixed size reads. The end of the stream reads
+     * 0 bytes once and then starts again from the beginning.
+     */
+    class StreamEndPoint implements EndPoint
+    {
+        public int fill(Buffer buffer)
+        {
+            int n=Math.min(buffer.space(),Math.min(READ_SIZE,_stream.length-_pos));
+            if (n==0)
+            {
+                _pos=0;
+                return 0;
+            }
+            buffer.put(_stream,_pos,n);
+            _pos+=n;
+            return n;
+        }
+
+        public int flush(Buffer buffer) { return 0; }
+        public int flush(Buffer header, Buffer buffer, Buffer trailer) { return 0; }
+        public void flush() { }
+        public void shutdownOutput() { }
+        public boolean isOutputShutdown() { return false; }
+        public void shutdownInput() { }
+        public boolean isInputShutdown() { return false; }
+        public void close() { }
+        public String getLocalAddr() { return null; }
+        public String getLocalHost() { return null; }
+        public int getLocalPort() { return 0; }
+        public String getRemoteAddr() { return null; }
+        public String getRemoteHost() { return null; }
+        public int getRemotePort() { return 0; }
+        public boolean isBlocking() { return false; }
+        public boolean blockReadable(long millisecs) { return true; }
+        public boolean blockWritable(long millisecs) { return true; }
+        public boolean isOpen() { return true; }
+        public Object getTransport() { return null; }
+        public int getMaxIdleTime() { return 0; }
+        public void setMaxIdleTime(int timeMs) { }
+    }
+}
@@ -0,0 +1,173 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.websocket;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/* ------------------------------------------------------------ */
+/**
+ * Measures ping round trips while a large message is being sent.
+ * <p>
+ * One thread sends a single large binary message to an {@link EchoServer}
+ * that reads it slowly. The main thread sends a timestamped PING every 50ms
+ * until that send returns. It prints how many PINGs were sent during the
+ * send, how long they took to reach the server and how long the PONGs took
+ * to come back. If control frames wait behind the message, few PINGs are sent
+ * and each of them takes about as long as the rest of the message.
+ * <p>
+ * If the send has not completed after a minute, for example because a PING
+ * is stuck behind it and the connection has stalled, the PINGs sent so far
+ * are printed and the harness exits with status 1.
+ * <p>
+ * Usage: <code>PingRttBench [messageBytes] [serverKbPerMs]</code>,
+ * 8MB at 4KB/ms by default.
+ */
+public class PingRttBench
+{
+    private static volatile int __sent;
+
+    /* ------------------------------------------------------------ */
+    public static void main(String[] args) throws Exception
+    {
+        int size=args.length>0?Integer.parseInt(args[0]):8*1024*1024;
+        int throttle=args.length>1?Integer.parseInt(args[1]):4;
+
+        EchoServer server = new EchoServer();
+        server.setThrottle(throttle);
+        server.start();
+
+        WebSocketClientFactory factory = new WebSocketClientFactory();
+        factory.start();
+        WebSocketClient client = factory.newWebSocketClient();
+        client.setMaxBinaryMessageSize(size+1024);
+
+        final List<Long> pongRtt = Collections.synchronizedList(new ArrayList<Long>());
+        WebSocket socket = new PongTimer(pongRtt);
+        final WebSocket.Connection connection = client.open(new URI("ws://127.0.0.1:"+server.getPort()+"/"),socket).get(5,TimeUnit.SECONDS);
+
+        final byte[] message=new byte[size];
+        Thread sender = new Thread("sender")
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    connection.sendMessage(message,0,message.length);
+                }
+                catch (Exception e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        };
+
+        final long start=System.currentTimeMillis();
+        Thread watchdog = new Thread("watchdog")
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep(60000);
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+                System.out.printf("message=%dB stalled after %dms, pings sent=%d%n",message.length,System.currentTimeMillis()-start,__sent);
+                System.exit(1);
+            }
+        };
+        watchdog.setDaemon(true);
+        watchdog.start();
+
+        sender.start();
+        while (sender.isAlive())
+        {
+            Thread.sleep(50);
+            byte[] stamp=EchoServer.timestamp();
+            ((WebSocket.FrameConnection)connection).sendControl(WebSocketConnectionRFC6455.OP_PING,stamp,0,stamp.length);
+            __sent++;
+        }
+        long sendMs=System.currentTimeMillis()-start;
+        int sent=__sent;
+
+        for (int wait=0;wait<400 && pongRtt.size()<sent;wait++)
+            Thread.sleep(50);
+
+        System.out.printf("message=%dB send=%dms pings sent=%d%n",size,sendMs,sent);
+        print("ping arrival at server",server.getPingArrivalMs());
+        synchronized (pongRtt)
+        {
+            print("pong round trip",new ArrayList<Long>(pongRtt));
+        }
+        watchdog.interrupt();
+
+        connection.close();
+        factory.stop();
+        System.exit(0);
+    }
+
+    /* ------------------------------------------------------------ */
+    private static void print(String name, List<Long> ms)
+    {
+        Collections.sort(ms);
+        if (ms.isEmpty())
+            System.out.printf("%-22s n=0%n",name);
+        else
+            System.out.printf("%-22s n=%d p50=%dms max=%dms%n",name,ms.size(),ms.get(ms.size()/2),ms.get(ms.size()-1));
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    private static class PongTimer implements WebSocket.OnBinaryMessage, WebSocket.OnControl
+    {
+        private final List<Long> _rtt;
+
+        PongTimer(List<Long> rtt)
+        {
+            _rtt=rtt;
+        }
+
+        public void onOpen(Connection connection)
+        {
+        }
+
+        public void onClose(int closeCode, String message)
+        {
+        }
+
+        public void onMessage(byte[] data, int offset, int length)
+        {
+        }
+
+        public boolean onControl(byte controlCode, byte[] data, int offset, int length)
+        {
+            if (controlCode==WebSocketConnectionRFC6455.OP_PONG && length==8)
+                _rtt.add((System.nanoTime()-EchoServer.readLong(data,offset))/1000000);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+//
+//  ========================================================================
+//  Copyright (c) 1995-2014 Mort Bay Consulting Pty. Ltd.
+//  ------------------------------------------------------------------------
+//  All rights reserved. This program and the accompanying materials
+//  are made available under the terms of the Eclipse Public License v1.0
+//  and Apache License v2.0 which accompanies this distribution.
+//
+//      The Eclipse Public License is available at
+//      http://www.eclipse.org/legal/epl-v10.html
+//
+//      The Apache License v2.0 is available at
+//      http://www.opensource.org/licenses/apache2.0.php
+//
+//  You may elect to redistribute this code under either of these licenses.
+//  ========================================================================
+//
+
+package org.eclipse.jetty.websocket;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.URI;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+
+/* ------------------------------------------------------------ */
+/**
+ * Measures wss echo throughput and client allocation over loopback.
+ * <p>
+ * The server is an {@link EchoServer} on a blocking SSLServerSocket, with a
+ * self signed key generated by the JDK's keytool at startup. Text messages
+ * of 64B, 1KB and 8KB are pipelined with a window of 256 unanswered
+ * messages. Allocation is summed over all threads except the server's, with
+ * {@link com.sun.management.ThreadMXBean}, so this needs a HotSpot based JVM.
+ * Each size is run three times and the last two are printed.
+ * <p>
+ * Usage: <code>TlsBench</code>
+ */
+public class TlsBench
+{
+    private static final String PASSWORD="bench-secret";
+
+    /* ------------------------------------------------------------ */
+    public static void main(String[] args) throws Exception
+    {
+        SSLContext context=newServerContext();
+        SSLServerSocket server=(SSLServerSocket)context.getServerSocketFactory().createServerSocket(0,50,InetAddress.getByName("127.0.0.1"));
+        EchoServer echo = new EchoServer(server);
+        echo.start();
+
+        WebSocketClientFactory factory = new WebSocketClientFactory();
+        factory.start();
+
+        final Semaphore window = new Semaphore(256);
+        final AtomicLong received = new AtomicLong();
+        WebSocket socket = new WebSocket.OnTextMessage()
+        {
+            public void onOpen(Connection connection)
+            {
+            }
+
+            public void onClose(int closeCode, String message)
+            {
+            }
+
+            public void onMessage(String data)
+            {
+                received.incrementAndGet();
+                window.release();
+            }
+        };
+        WebSocket.Connection connection = factory.newWebSocketClient().open(new URI("wss://localhost:"+echo.getPort()+"/"),socket).get(5,TimeUnit.SECONDS);
+
+        for (int size : new int[]{64,1024,8192})
+        {
+            char[] chars=new char[size];
+            Arrays.fill(chars,'x');
+            String message=new String(chars);
+            int n=size>=8192?40000:200000;
+
+            for (int round=0;round<3;round++)
+            {
+                received.set(0);
+                long allocated=clientAllocatedBytes();
+                long start=System.nanoTime();
+                for (int i=0;i<n;i++)
+                {
+                    window.acquire();
+                    connection.sendMessage(message);
+                }
+                while (received.get()<n)
+                    Thread.sleep(1);
+                long ns=System.nanoTime()-start;
+                allocated=clientAllocatedBytes()-allocated;
+
+                if (round>0)
+                    System.out.printf("size=%5d msg/s=%8.0f MB/s=%6.1f clientAlloc/msg=%5d B%n",
+                        size,n*1e9/ns,(double)n*size*2*1000/ns,allocated/n);
+            }
+        }
+
+        connection.close();
+        factory.stop();
+        System.exit(0);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the bytes allocated so far by the live threads other than the echo server's
+     */
+    private static long clientAllocatedBytes()
+    {
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long sum=0;
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+        {
+            if (thread.getName().startsWith("EchoServer"))
+                continue;
+            long bytes=mx.getThreadAllocatedBytes(thread.getId());
+            if (bytes>0)
+                sum+=bytes;
+        }
+        return sum;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Generates a self signed key for localhost with keytool and loads it.
+     */
+    private static SSLContext newServerContext() throws Exception
+    {
+        File keystore=File.createTempFile("tlsbench",".jks");
+        keystore.delete();
+        keystore.deleteOnExit();
+
+        String keytool=System.getProperty("java.home")+File.separator+"bin"+File.separator+"keytool";
+        Process process=new ProcessBuilder(keytool,"-genkeypair","-alias","bench","-keyalg","RSA","-keysize","2048",
+            "-dname","CN=localhost","-validity","1","-storetype","JKS",
+            "-keystore",keystore.getPath(),"-storepass",PASSWORD,"-keypass",PASSWORD)
+            .redirectErrorStream(true).start();
+        InputStream out=process.getInputStream();
+        while (out.read()>=0)
+            ;
+        if (process.waitFor()!=0)
+            throw new IOException("keytool failed: "+keytool);
+
+        KeyStore keys=KeyStore.getInstance("JKS");
+        InputStream in=new FileInputStream(keystore);
+        try
+        {
+            keys.load(in,PASSWORD.toCharArray());
+        }
+        finally
+        {
+            in.close();
+        }
+
+        KeyManagerFactory kmf=KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keys,PASSWORD.toCharArray());
+        SSLContext context=SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(),null,null);
+        return context;
+    }
+}